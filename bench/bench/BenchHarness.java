@@ -0,0 +1,181 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Runs a benchmark body a number of times after a warmup and measures the time, the bytes allocated by all threads
+ * and the garbage collections, in the spirit of JMH's average time mode with the GC profiler (without forking a JVM
+ * per benchmark, so the results of a run are only comparable with runs of the same command line). The results of the
+ * body are kept, like JMH's blackhole, so the work can't be optimized away. The jmh module has the forked benchmarks.
+ */
+public class BenchHarness {
+    public interface Body {
+        /**
+         * @return the result of the work, which the harness keeps
+         */
+        Object run() throws Exception;
+    }
+
+    public static class Result {
+        public final String benchmark;
+        public final String input;
+        public final int width;
+        public final int height;
+        public final int threads;
+        public final int iterations;
+        public final double meanMillis;
+        public final double minMillis;
+        public final double maxMillis;
+        public final long allocatedBytesPerOp; // -1 if the JVM can't measure it
+        public final long gcCount;
+        public final long gcMillis;
+
+        Result(String benchmark, String input, int width, int height, int threads, long[] nanos, long allocated,
+               long gcCount, long gcMillis) {
+            this.benchmark = benchmark;
+            this.input = input;
+            this.width = width;
+            this.height = height;
+            this.threads = threads;
+            this.iterations = nanos.length;
+
+            long total = 0, min = Long.MAX_VALUE, max = 0;
+            for(long n : nanos) {
+                total += n;
+                min = Math.min(min, n);
+                max = Math.max(max, n);
+            }
+            this.meanMillis = total / 1e6 / nanos.length;
+            this.minMillis = min / 1e6;
+            this.maxMillis = max / 1e6;
+            this.allocatedBytesPerOp = allocated < 0 ? -1 : allocated / nanos.length;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        public double getOpsPerSecond() {
+            return 1000 / meanMillis;
+        }
+
+        public double getMegapixelsPerSecond() {
+            return (double) width * height / 1e6 * getOpsPerSecond();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-18s %-12s %5dx%-5d %3d threads %9.2f ms/op (min %9.2f) %8.2f MP/s %9s/op %4d GCs %6d ms",
+                    benchmark, input, width, height, threads, meanMillis, minMillis, getMegapixelsPerSecond(),
+                    allocatedBytesPerOp < 0 ? "n/a" : (allocatedBytesPerOp >> 20) + " MB", gcCount, gcMillis);
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"benchmark\": \"%s\", \"input\": \"%s\", \"width\": %d, \"height\": %d, "
+                            + "\"threads\": %d, \"iterations\": %d, \"meanMs\": %.3f, \"minMs\": %.3f, \"maxMs\": %.3f, "
+                            + "\"opsPerSecond\": %.4f, \"megapixelsPerSecond\": %.3f, \"allocatedBytesPerOp\": %d, "
+                            + "\"gcCount\": %d, \"gcMs\": %d}",
+                    escape(benchmark), escape(input), width, height, threads, iterations, meanMillis, minMillis, maxMillis,
+                    getOpsPerSecond(), getMegapixelsPerSecond(), allocatedBytesPerOp, gcCount, gcMillis);
+        }
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private volatile Object sink;
+
+    public BenchHarness(int warmupIterations, int iterations) {
+        if(iterations < 1)
+            throw new IllegalArgumentException("At least one measured iteration is needed");
+
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+    }
+
+    public Result measure(String benchmark, String input, int width, int height, int threads, Body body) throws Exception {
+        for(int i=0; i<warmupIterations; ++i)
+            sink = body.run();
+
+        System.gc(); // so the garbage of the warmup isn't collected during the measurement
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Set<Long> threadsBefore = threadIds(threadBean);
+        long startedBefore = threadBean.getTotalStartedThreadCount();
+        long allocatedBefore = allocatedBytes();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+
+        long[] nanos = new long[iterations];
+        for(int i=0; i<iterations; ++i) {
+            long start = System.nanoTime();
+            sink = body.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        sink = null;
+
+        long allocatedAfter = allocatedBytes();
+        // the allocations of threads that ended during the measurement are lost, so then there is no result
+        Set<Long> threadsAfter = threadIds(threadBean);
+        boolean threadsEnded = !threadsAfter.containsAll(threadsBefore)
+                || threadBean.getTotalStartedThreadCount() - startedBefore != threadsAfter.size() - threadsBefore.size();
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0 || threadsEnded ? -1 : allocatedAfter - allocatedBefore;
+        return new Result(benchmark, input, width, height, threads, nanos, allocated,
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+    }
+
+    public static String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder("[\n");
+        for(int i=0; i<results.size(); ++i) {
+            sb.append("  ").append(results.get(i).toJson());
+            sb.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        return sb.append("]\n").toString();
+    }
+
+    private static Set<Long> threadIds(ThreadMXBean bean) {
+        Set<Long> res = new HashSet<>();
+        for(long id : bean.getAllThreadIds())
+            res.add(id);
+        return res;
+    }
+
+    /**
+     * @return the bytes allocated so far by the live threads, or -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if(!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        long total = 0;
+        for(long bytes : sunBean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if(bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionCount());
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import domain.EffectStep;
+import domain.EffectType;
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The inputs of the benchmarks (here and in the jmh module): synthetic or real images at a standard size, and the
+ * effect values a user would typically type
+ */
+public final class BenchImages {
+    public static final String SYNTHETIC = "synthetic";
+
+    private BenchImages() {
+    }
+
+    /**
+     * @param input SYNTHETIC, or the path of an image, which keeps its aspect ratio
+     */
+    public static BufferedImage load(String input, double megapixels) throws IOException {
+        if(input.equals(SYNTHETIC))
+            return synthetic(megapixels);
+
+        BufferedImage original = ImageIO.read(new File(input));
+        if(original == null)
+            throw new IllegalArgumentException("Could not read " + input);
+        return resize(original, megapixels);
+    }
+
+    /**
+     * The values are the ones a user would typically type in the window. SUBTRACTION refers to an image named "other".
+     */
+    public static EffectStep step(EffectType type, int width, int height) {
+        switch (type) {
+            case CONTRAST: return new EffectStep(type, 40);
+            case GAMMA_CORRECTION: return new EffectStep(type, 1.5);
+            case SUBTRACTION: return new EffectStep(type, 0, "other");
+            case MEDIAN_FILTER: return new EffectStep(type, 2);
+            case SCALE: return new EffectStep(type, 0.5);
+            case CONTOUR:
+            case SKELETON:
+                return new EffectStep(type, 10);
+            case LENS_FLARE:
+                return new EffectStep(type, 0, (width / 2) + "," + (height / 2) + "," + (width / 4) + "," + (height / 4));
+            default: return new EffectStep(type, 0);
+        }
+    }
+
+    /**
+     * A smooth gradient with noise and dark discs, so every effect has edges and shapes to work on. The same size
+     * always gives the same image.
+     */
+    public static BufferedImage synthetic(double megapixels) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(megapixels * 1e6 / width);
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = RasterUtils.getPixels(res);
+
+        long seed = 42;
+        for(int y=0; y<height; ++y) {
+            for(int x=0; x<width; ++x) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                int noise = (int) (seed >>> 59) - 16;
+                int r = clamp(x * 255 / width + noise);
+                int g = clamp(y * 255 / height + noise);
+                int b = clamp((x + y) * 255 / (width + height) - noise);
+                pixels[y * width + x] = r << 16 | g << 8 | b;
+            }
+        }
+
+        Graphics2D g = res.createGraphics();
+        g.setColor(new Color(20, 20, 30));
+        int radius = Math.max(4, width / 40);
+        for(int i=0; i<64; ++i) {
+            int cx = (int) ((i * 0.618034 % 1) * width);
+            int cy = (int) ((i * 0.381966 % 1) * height);
+            g.fillOval(cx - radius, cy - radius, 2 * radius, 2 * radius);
+        }
+        g.dispose();
+        return res;
+    }
+
+    public static BufferedImage resize(BufferedImage img, double megapixels) {
+        double ratio = Math.sqrt(megapixels * 1e6 / ((double) img.getWidth() * img.getHeight()));
+        int width = Math.max(1, (int) Math.round(img.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(img.getHeight() * ratio));
+        BufferedImage res = new BufferedImage(width, height, img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = res.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, width, height, null);
+        g.dispose();
+        return res;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
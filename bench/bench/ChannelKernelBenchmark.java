@@ -0,0 +1,141 @@
+package bench;
+
+import domain.Argb;
+import domain.PixelKernel;
+import service.ChannelLut;
+import service.RasterEffects;
+import service.TileScheduler;
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the vectorizable row loops of greyscale, contrast, subtraction and contour with the per-pixel kernel
+ * versions, checking that the pixels are identical:
+ * <pre>
+ * ChannelKernelBenchmark [image] [megapixels] [iterations]
+ * </pre>
+ * Run it on the host to measure (AVX2, AVX-512, ...); -XX:UseAVX=2 limits an AVX-512 host to AVX2 and
+ * -XX:-UseSuperWord turns the vectorization off, to see how much of the speedup comes from the SIMD instructions.
+ */
+public class ChannelKernelBenchmark {
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : "hill.png";
+        double megapixels = args.length > 1 ? Double.parseDouble(args[1]) : 12;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        BufferedImage image = resize(ImageIO.read(new File(path)), megapixels);
+        BufferedImage other = noise(image.getWidth(), image.getHeight());
+        RasterEffects effects = new RasterEffects(new TileScheduler(1, 0));
+
+        System.out.printf("%s at %dx%d, single thread, %s%n", path, image.getWidth(), image.getHeight(), System.getProperty("java.vm.name"));
+
+        ChannelLut contrast = ChannelLut.contrast(40);
+        PixelKernel contrastKernel = contrast.asKernel();
+        PixelKernel subtractionKernel = RasterEffects.subtractionKernel(image, other);
+
+        // wrapping a kernel in a lambda hides it from RasterEffects, so it goes through the per-pixel path
+        compare("greyscale", iterations,
+                () -> effects.greyscale(image),
+                () -> effects.applyPixelKernel(image, (argb, x, y) -> RasterEffects.GREYSCALE.apply(argb, x, y)));
+        compare("contrast", iterations,
+                () -> effects.channelLut(image, contrast),
+                () -> effects.applyPixelKernel(image, (argb, x, y) -> contrastKernel.apply(argb, x, y)));
+        compare("subtraction", iterations,
+                () -> effects.subtraction(image, other),
+                () -> effects.applyPixelKernel(image, (argb, x, y) -> subtractionKernel.apply(argb, x, y)));
+        compare("contour", iterations,
+                () -> effects.contour(image, 10),
+                () -> contourPerPixel(image, 10));
+    }
+
+    private interface Effect {
+        BufferedImage apply() throws Exception;
+    }
+
+    private static void compare(String name, int iterations, Effect rows, Effect perPixel) throws Exception {
+        int[] expected = RasterUtils.getPixels(perPixel.apply());
+        int[] actual = RasterUtils.getPixels(rows.apply());
+        if(!Arrays.equals(expected, actual))
+            throw new AssertionError(name + ": the row loop gives different pixels");
+
+        double rowsMs = time(rows, iterations);
+        double perPixelMs = time(perPixel, iterations);
+        System.out.printf(Locale.ROOT, "%-12s rows %8.2f ms, per pixel %8.2f ms, speedup %5.2fx, identical%n",
+                name, rowsMs, perPixelMs, perPixelMs / rowsMs);
+    }
+
+    private static double time(Effect effect, int iterations) throws Exception {
+        for(int i=0; i<WARMUP; ++i)
+            effect.apply();
+
+        long start = System.nanoTime();
+        for(int i=0; i<iterations; ++i)
+            effect.apply();
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    /**
+     * The previous contour, computing the brightness of each neighbour again for every pixel
+     */
+    private static BufferedImage contourPerPixel(BufferedImage image, int cutoff) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = RasterUtils.getPixels(image);
+        int threshold = cutoff * 3;
+
+        BufferedImage resultImage = new BufferedImage(width, height, image.getType());
+        int[] result = RasterUtils.getPixels(resultImage);
+        int opaque = RasterUtils.opaqueMask(resultImage);
+        int black = Color.black.getRGB() & ~opaque;
+        int white = Color.white.getRGB() & ~opaque;
+
+        for(int y=0; y<height; ++y) {
+            for(int x=0; x<width; ++x) {
+                int i = y * width + x;
+                if(x == 0 || y == 0 || x == width-1 || y == height-1) {
+                    result[i] = white;
+                    continue;
+                }
+
+                int val = Argb.total(pixels[i]);
+                boolean isMargin = Argb.total(pixels[i+1]) - val > threshold
+                        || Argb.total(pixels[i-1]) - val > threshold
+                        || Argb.total(pixels[i+width]) - val > threshold
+                        || Argb.total(pixels[i-width]) - val > threshold;
+                result[i] = isMargin ? black : white;
+            }
+        }
+        RasterUtils.setPixels(resultImage, result);
+        return resultImage;
+    }
+
+    private static BufferedImage noise(int width, int height) {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = RasterUtils.getPixels(res);
+        Random random = new Random(42);
+        for(int i=0; i<pixels.length; ++i)
+            pixels[i] = random.nextInt() & 0x7F7F7F;
+        return res;
+    }
+
+    private static BufferedImage resize(BufferedImage img, double megapixels) {
+        double ratio = Math.sqrt(megapixels * 1e6 / ((double) img.getWidth() * img.getHeight()));
+        int width = Math.max(1, (int) Math.round(img.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(img.getHeight() * ratio));
+        BufferedImage res = new BufferedImage(width, height, img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = res.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, width, height, null);
+        g.dispose();
+        return res;
+    }
+}
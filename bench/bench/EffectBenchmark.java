@@ -0,0 +1,182 @@
+package bench;
+
+import domain.EffectStep;
+import domain.EffectType;
+import domain.SaveOptions;
+import repo.DecodedImageCache;
+import repo.ImageSaver;
+import repo.TwoImageRepo;
+import service.EffectPipeline;
+import service.RasterEffects;
+import service.TileScheduler;
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmarks every effect, and loading, saving and copying images in the repo, on synthetic and real images scaled to
+ * standard sizes, with different numbers of threads:
+ * <pre>
+ * EffectBenchmark [--sizes 1,12,50] [--threads 1,2,4] [--inputs synthetic,hill.png,Thicc.png] [--effects GREYSCALE,CONTOUR]
+ *                 [--warmup 1] [--iterations 3] [--json results.json] [--no-repo]
+ * </pre>
+ * Sizes are in megapixels; the real images keep their aspect ratio. The 50 MP runs need a large heap (-Xmx6g).
+ * Each result reports the time per operation, the throughput in megapixels per second, the bytes allocated per
+ * operation and the garbage collections; the scaling table compares each thread count with the first one.
+ */
+public class EffectBenchmark {
+    public static void main(String[] args) throws Exception {
+        double[] sizes = {1, 12, 50};
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] threads = processors > 1 ? new int[]{1, processors} : new int[]{1};
+        String[] inputs = {BenchImages.SYNTHETIC, "hill.png", "Thicc.png"};
+        List<EffectType> effects = new ArrayList<>();
+        Collections.addAll(effects, EffectType.values());
+        int warmup = 1;
+        int iterations = 3;
+        String jsonPath = null;
+        boolean repo = true;
+
+        for(int i=0; i<args.length; ++i) {
+            if(args[i].equals("--no-repo")) {
+                repo = false;
+                continue;
+            }
+            if(i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            String value = args[++i];
+            switch (args[i-1]) {
+                case "--sizes":
+                    String[] split = value.split(",");
+                    sizes = new double[split.length];
+                    for(int j=0; j<split.length; ++j)
+                        sizes[j] = Double.parseDouble(split[j].trim());
+                    break;
+                case "--threads":
+                    split = value.split(",");
+                    threads = new int[split.length];
+                    for(int j=0; j<split.length; ++j)
+                        threads[j] = Integer.parseInt(split[j].trim());
+                    break;
+                case "--inputs": inputs = value.split(","); break;
+                case "--effects":
+                    effects.clear();
+                    for(String effect : value.split(","))
+                        effects.add(EffectType.valueOf(effect.trim().toUpperCase()));
+                    break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--iterations": iterations = Integer.parseInt(value); break;
+                case "--json": jsonPath = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i-1]);
+            }
+        }
+
+        BenchHarness harness = new BenchHarness(warmup, iterations);
+        Map<Integer, RasterEffects> effectsByThreads = new HashMap<>();
+        for(int t : threads)
+            effectsByThreads.put(t, new RasterEffects(new TileScheduler(t, TileScheduler.DEFAULT_SERIAL_THRESHOLD)));
+
+        List<BenchHarness.Result> results = new ArrayList<>();
+        for(String input : inputs) {
+            input = input.trim();
+            String name = new File(input).getName();
+
+            for(double megapixels : sizes) {
+                BufferedImage image = BenchImages.load(input, megapixels);
+                int width = image.getWidth();
+                int height = image.getHeight();
+                // SUBTRACTION needs another image of the same size
+                BufferedImage other = effects.contains(EffectType.SUBTRACTION) ? effectsByThreads.get(threads[0]).greyscale(image) : null;
+
+                for(EffectType type : effects) {
+                    List<EffectStep> steps = Collections.singletonList(BenchImages.step(type, width, height));
+                    for(int t : threads) {
+                        EffectPipeline pipeline = EffectPipeline.compile(steps, effectsByThreads.get(t), path -> other);
+                        BenchHarness.Result result = harness.measure(type.name(), name, width, height, t, () -> pipeline.run(image));
+                        System.out.println(result);
+                        results.add(result);
+                    }
+                }
+
+                if(repo)
+                    results.addAll(benchmarkRepo(harness, image, name));
+            }
+        }
+
+        printScaling(results, System.out);
+        if(jsonPath != null) {
+            try (PrintStream out = new PrintStream(jsonPath, "UTF-8")) {
+                out.print(BenchHarness.toJson(results));
+            }
+        }
+    }
+
+    /**
+     * Loading (decoding only, and TwoImageRepo.loadImage with its history), saving and the writable copy of
+     * the working image, all on the calling thread
+     */
+    private static List<BenchHarness.Result> benchmarkRepo(BenchHarness harness, BufferedImage image, String name) throws Exception {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        List<BenchHarness.Result> results = new ArrayList<>();
+        File file = File.createTempFile("bench", ".png");
+        File saved = File.createTempFile("bench-saved", ".png");
+        // nothing is cached: loading decodes every time and waits for the image to be pushed to the undo history
+        DecodedImageCache uncached = new DecodedImageCache(0);
+        TwoImageRepo repo = new TwoImageRepo(uncached);
+        try {
+            ImageSaver.write(image, file, SaveOptions.DEFAULT);
+            results.add(harness.measure("repo.decode", name, width, height, 1, () -> uncached.load(file)));
+            results.add(harness.measure("repo.loadImage", name, width, height, 1, () -> {
+                BufferedImage loaded = repo.loadImage(file.getPath());
+                repo.canUndo();
+                return loaded;
+            }));
+            results.add(harness.measure("repo.save", name, width, height, 1, () -> {
+                ImageSaver.write(image, saved, SaveOptions.DEFAULT);
+                return saved.length();
+            }));
+            results.add(harness.measure("repo.copy", name, width, height, 1, repo::copySourceImage));
+        } finally {
+            repo.close();
+            if(!file.delete())
+                file.deleteOnExit();
+            if(!saved.delete())
+                saved.deleteOnExit();
+        }
+
+        for(BenchHarness.Result result : results)
+            System.out.println(result);
+        return results;
+    }
+
+    /**
+     * Prints, for each benchmark, input and size, how much faster each thread count is than the first one
+     */
+    private static void printScaling(List<BenchHarness.Result> results, PrintStream out) {
+        out.println();
+        out.println("Scaling (speedup over the first thread count):");
+        Map<String, BenchHarness.Result> baselines = new HashMap<>();
+        for(BenchHarness.Result result : results) {
+            String key = result.benchmark + " " + result.input + " " + result.width + "x" + result.height;
+            BenchHarness.Result baseline = baselines.get(key);
+            if(baseline == null) {
+                baselines.put(key, result);
+                continue;
+            }
+            double speedup = baseline.meanMillis / result.meanMillis;
+            out.printf(Locale.ROOT, "%-40s %3d -> %3d threads: %5.2fx (efficiency %3.0f%%)%n", key, baseline.threads,
+                    result.threads, speedup, 100 * speedup * baseline.threads / result.threads);
+        }
+    }
+}
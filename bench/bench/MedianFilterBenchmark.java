@@ -0,0 +1,110 @@
+package bench;
+
+import domain.Argb;
+import service.MedianFilter;
+import service.RasterEffects;
+import service.TileScheduler;
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compares the histogram median filter with the old sort based one on hill.png upscaled to 8K.
+ * Usage: MedianFilterBenchmark [image] [window sizes...]
+ */
+public class MedianFilterBenchmark {
+    private static final int WIDTH_8K = 7680;
+    private static final int HEIGHT_8K = 4320;
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : "hill.png";
+        int[] windowSizes = {1, 2, 5, 10};
+        if(args.length > 1) {
+            windowSizes = new int[args.length - 1];
+            for(int i=1; i<args.length; ++i)
+                windowSizes[i-1] = Integer.parseInt(args[i]);
+        }
+
+        BufferedImage image = upscale(ImageIO.read(new File(path)), WIDTH_8K, HEIGHT_8K);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] source = RasterUtils.getPixels(image);
+        int opaque = RasterUtils.opaqueMask(image);
+
+        TileScheduler serial = new TileScheduler(1, 0);
+        TileScheduler parallel = new TileScheduler();
+
+        System.out.printf("%s upscaled to %dx%d, %d threads%n", path, width, height, parallel.getParallelism());
+        for(int windowSize : windowSizes) {
+            int[] histogram = new int[source.length];
+            int[] sorted = new int[source.length];
+
+            long histogramSerial = time(() -> new MedianFilter(windowSize, RasterEffects.MEDIAN_REMOVE_MARGIN).apply(source, histogram, width, height, opaque, serial));
+            long histogramParallel = time(() -> new MedianFilter(windowSize, RasterEffects.MEDIAN_REMOVE_MARGIN).apply(source, histogram, width, height, opaque, parallel));
+            long sortParallel = time(() -> sortMedian(source, sorted, width, height, windowSize, opaque, parallel));
+
+            int same = 0, maxDiff = 0;
+            for(int i=0; i<source.length; ++i) {
+                if(histogram[i] == sorted[i])
+                    ++same;
+                maxDiff = Math.max(maxDiff, Math.abs(Argb.total(histogram[i]) - Argb.total(sorted[i])));
+            }
+
+            System.out.printf("window %3d: histogram %6d ms (serial %6d ms), sort %7d ms, %.2f%% identical pixels, max brightness difference %d%n",
+                    windowSize, histogramParallel, histogramSerial, sortParallel, 100.0 * same / source.length, maxDiff);
+        }
+    }
+
+    private static BufferedImage upscale(BufferedImage img, int width, int height) {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = res.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, width, height, null);
+        g.dispose();
+        return res;
+    }
+
+    private static long time(Runnable r) {
+        long start = System.nanoTime();
+        r.run();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * The previous implementation: collect the window in a list, sort it, drop the outliers and sort again
+     */
+    private static void sortMedian(int[] source, int[] result, int width, int height, int windowSize, int opaque, TileScheduler scheduler) {
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            for(int y=fromY; y<toY; ++y) {
+                for(int x=0; x<width; ++x) {
+                    int leftBorder = Math.max(0, x - windowSize);
+                    int rightBorder = Math.min(width-1, x + windowSize);
+                    int topBorder = Math.max(0, y - windowSize);
+                    int bottomBorder = Math.min(height - 1, y + windowSize);
+
+                    List<Integer> values = new ArrayList<>();
+                    for(int i=leftBorder; i<=rightBorder; ++i) {
+                        for(int j=topBorder; j<=bottomBorder; ++j) {
+                            if(x == i && y == j)
+                                continue;
+                            values.add(source[j * width + i]);
+                        }
+                    }
+
+                    values.sort(Comparator.comparingInt(Argb::total));
+                    int minTotal = Argb.total(values.get(0));
+                    int maxTotal = Argb.total(values.get(values.size()-1));
+                    values.removeIf(v -> Argb.total(v) - RasterEffects.MEDIAN_REMOVE_MARGIN < minTotal || Argb.total(v) + RasterEffects.MEDIAN_REMOVE_MARGIN > maxTotal);
+
+                    result[y * width + x] = values.size() >= 2 ? (values.get(values.size() / 2) | 0xFF000000) & ~opaque : source[y * width + x];
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+package bench.jmh;
+
+import bench.BenchImages;
+import domain.EffectType;
+import org.openjdk.jmh.annotations.*;
+import service.EffectPipeline;
+import service.RasterEffects;
+import service.TileScheduler;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every effect, compiled into a one step pipeline as the window runs it, on synthetic and real images of standard sizes
+ * (in megapixels) with different numbers of threads. The images returned go to JMH's blackhole.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class EffectBenchmarks {
+    @Param({BenchImages.SYNTHETIC, "hill.png", "Thicc.png"})
+    public String input;
+
+    @Param({"1", "12", "50"})
+    public double size;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private BufferedImage image;
+    private final Map<EffectType, EffectPipeline> pipelines = new EnumMap<>(EffectType.class);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = BenchImages.load(input, size);
+        RasterEffects effects = new RasterEffects(new TileScheduler(threads, TileScheduler.DEFAULT_SERIAL_THRESHOLD));
+        // SUBTRACTION needs another image of the same size
+        BufferedImage other = effects.greyscale(image);
+        for(EffectType type : EffectType.values()) {
+            pipelines.put(type, EffectPipeline.compile(Collections.singletonList(BenchImages.step(type, image.getWidth(), image.getHeight())),
+                    effects, path -> other));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        image = null;
+        pipelines.clear();
+    }
+
+    private BufferedImage run(EffectType type) throws IOException {
+        return pipelines.get(type).run(image);
+    }
+
+    @Benchmark
+    public BufferedImage greyscale() throws IOException {
+        return run(EffectType.GREYSCALE);
+    }
+
+    @Benchmark
+    public BufferedImage contrast() throws IOException {
+        return run(EffectType.CONTRAST);
+    }
+
+    @Benchmark
+    public BufferedImage gammaCorrection() throws IOException {
+        return run(EffectType.GAMMA_CORRECTION);
+    }
+
+    @Benchmark
+    public BufferedImage subtraction() throws IOException {
+        return run(EffectType.SUBTRACTION);
+    }
+
+    @Benchmark
+    public BufferedImage medianFilter() throws IOException {
+        return run(EffectType.MEDIAN_FILTER);
+    }
+
+    @Benchmark
+    public BufferedImage scale() throws IOException {
+        return run(EffectType.SCALE);
+    }
+
+    @Benchmark
+    public BufferedImage contour() throws IOException {
+        return run(EffectType.CONTOUR);
+    }
+
+    @Benchmark
+    public BufferedImage skeleton() throws IOException {
+        return run(EffectType.SKELETON);
+    }
+
+    @Benchmark
+    public BufferedImage thinning() throws IOException {
+        return run(EffectType.THINNING);
+    }
+
+    @Benchmark
+    public BufferedImage lensFlare() throws IOException {
+        return run(EffectType.LENS_FLARE);
+    }
+}
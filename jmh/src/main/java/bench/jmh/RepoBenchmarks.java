@@ -0,0 +1,82 @@
+package bench.jmh;
+
+import bench.BenchImages;
+import domain.SaveOptions;
+import org.openjdk.jmh.annotations.*;
+import repo.DecodedImageCache;
+import repo.ImageSaver;
+import repo.TwoImageRepo;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading, saving and copying images in the repo, on the calling thread. Nothing is cached between operations:
+ * decoding and loading use a cache of size 0, and loading waits for the image to be pushed to the undo history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class RepoBenchmarks {
+    @Param({BenchImages.SYNTHETIC, "hill.png", "Thicc.png"})
+    public String input;
+
+    @Param({"1", "12", "50"})
+    public double size;
+
+    private BufferedImage image;
+    private File file;
+    private File saved;
+    private DecodedImageCache uncached;
+    private TwoImageRepo repo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = BenchImages.load(input, size);
+        file = File.createTempFile("bench", ".png");
+        saved = File.createTempFile("bench-saved", ".png");
+        ImageSaver.write(image, file, SaveOptions.DEFAULT);
+        uncached = new DecodedImageCache(0);
+        repo = new TwoImageRepo(uncached);
+        repo.loadImage(file.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            repo.close();
+        } finally {
+            if(!file.delete())
+                file.deleteOnExit();
+            if(!saved.delete())
+                saved.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return uncached.load(file);
+    }
+
+    @Benchmark
+    public boolean loadImage() {
+        repo.loadImage(file.getPath());
+        return repo.canUndo();
+    }
+
+    @Benchmark
+    public File save() throws IOException {
+        ImageSaver.write(image, saved, SaveOptions.DEFAULT);
+        return saved;
+    }
+
+    @Benchmark
+    public BufferedImage copy() {
+        return repo.copySourceImage();
+    }
+}
@@ -1,3 +1,4 @@
+import controller.MainWindowController;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
@@ -5,15 +6,24 @@ import javafx.scene.Scene;
 import javafx.stage.Stage;
 
 public class Main extends Application {
+    private MainWindowController controller;
 
     @Override
     public void start(Stage primaryStage) throws Exception{
-        Parent root = FXMLLoader.load(getClass().getResource("FXML/MainWindow.fxml"));
+        FXMLLoader loader = new FXMLLoader(getClass().getResource("FXML/MainWindow.fxml"));
+        Parent root = loader.load();
+        controller = loader.getController();
         primaryStage.setTitle("Hello World");
         primaryStage.setScene(new Scene(root, 776, 650));
         primaryStage.show();
     }
 
+    @Override
+    public void stop() {
+        if(controller != null)
+            controller.shutdown();
+    }
+
 
     public static void main(String[] args) {
         launch(args);
@@ -0,0 +1,132 @@
+package batch;
+
+import domain.EffectStep;
+import domain.SaveOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless entry point, for processing many images on a server:
+ * <pre>
+ * BatchMain &lt;input dir or glob&gt; &lt;recipe or @recipe file&gt; &lt;output dir&gt;
+ *           [--workers N] [--io-threads N] [--in-flight N] [--format png] [--report report.csv] [--timeout ms] [--strip-height rows] [--jpeg-quality 0.9]
+ * </pre>
+ * The recipe is a list of effects separated by ';', e.g. "GREYSCALE; CONTRAST 40; MEDIAN_FILTER 2".
+ * With --strip-height the files are streamed strip by strip, for images that don't fit in memory.
+ * Inputs that would be written to the same file (a.png and a.jpg with --format png) get numbered names: a.png, a-2.png.
+ */
+public class BatchMain {
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("png", "jpg", "jpeg", "bmp", "gif");
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3) {
+            System.err.println("Usage: BatchMain <input dir or glob> <recipe or @recipe file> <output dir> "
+                    + "[--workers N] [--io-threads N] [--in-flight N] [--format png] [--report report.csv] [--timeout ms] [--strip-height rows] [--jpeg-quality 0.9]");
+            System.exit(2);
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        int ioThreads = 2;
+        int inFlight = -1;
+        String format = null;
+        String reportPath = null;
+        long timeout = 0;
+        int stripHeight = 0;
+        float jpegQuality = SaveOptions.DEFAULT.getJpegQuality();
+        for(int i=3; i+1<args.length; i+=2) {
+            String value = args[i+1];
+            switch (args[i]) {
+                case "--workers": workers = Integer.parseInt(value); break;
+                case "--io-threads": ioThreads = Integer.parseInt(value); break;
+                case "--in-flight": inFlight = Integer.parseInt(value); break;
+                case "--format": format = value; break;
+                case "--report": reportPath = value; break;
+                case "--timeout": timeout = Long.parseLong(value); break;
+                case "--strip-height": stripHeight = Integer.parseInt(value); break;
+                case "--jpeg-quality": jpegQuality = Float.parseFloat(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if(inFlight < 1)
+            inFlight = 2 * workers;
+
+        String recipeText = args[1].startsWith("@") ? new String(Files.readAllBytes(Paths.get(args[1].substring(1)))) : args[1];
+        List<EffectStep> recipe = EffectStep.parseRecipe(recipeText);
+        List<File> inputs = findInputs(args[0]);
+
+        long start = System.nanoTime();
+        BatchRunner runner = new BatchRunner(recipe, new File(args[2]), format, workers, ioThreads, inFlight, timeout);
+        runner.setStripHeight(stripHeight);
+        runner.setJpegQuality(jpegQuality);
+        List<BatchRunner.FileReport> reports = runner.run(inputs);
+        long totalMs = (System.nanoTime() - start) / 1_000_000;
+
+        printReport(reports, System.out);
+        if(reportPath != null) {
+            try (PrintStream out = new PrintStream(reportPath)) {
+                printCsv(reports, out);
+            }
+        }
+
+        long failed = reports.stream().filter(r -> r.error != null).count();
+        System.out.printf("%d files, %d failed, %d ms%n", reports.size(), failed, totalMs);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * @param input a directory (all the images in it) or a glob on file names, like /photos/*.jpg
+     */
+    static List<File> findInputs(String input) throws IOException {
+        Path path = Paths.get(input);
+        Path dir;
+        PathMatcher matcher;
+        if(Files.isDirectory(path)) {
+            dir = path;
+            matcher = p -> {
+                String name = p.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                return dot > 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+            };
+        }
+        else {
+            dir = path.getParent() != null ? path.getParent() : Paths.get(".");
+            PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+            matcher = p -> glob.matches(p.getFileName());
+        }
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).filter(matcher::matches).sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    private static void printReport(List<BatchRunner.FileReport> reports, PrintStream out) {
+        out.printf("%-40s %11s %8s %8s %8s %8s%n", "file", "size", "decode", "process", "encode", "MP/s");
+        for(BatchRunner.FileReport r : reports) {
+            if(r.error != null)
+                out.printf("%-40s FAILED: %s%n", r.input.getName(), r.error);
+            else
+                out.printf("%-40s %5dx%-5d %6dms %6dms %6dms %8.1f%n", r.input.getName(), r.width, r.height,
+                        r.decodeMs, r.processMs, r.encodeMs, r.getMegapixelsPerSecond());
+        }
+    }
+
+    private static void printCsv(List<BatchRunner.FileReport> reports, PrintStream out) {
+        out.println("file,width,height,decode_ms,process_ms,encode_ms,error,output");
+        for(BatchRunner.FileReport r : reports) {
+            String error = r.error == null ? "" : "\"" + r.error.replace("\"", "\"\"") + "\"";
+            out.printf("%s,%d,%d,%d,%d,%d,%s,%s%n", r.input.getPath(), r.width, r.height, r.decodeMs, r.processMs, r.encodeMs, error, r.output.getPath());
+        }
+    }
+}
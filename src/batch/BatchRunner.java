@@ -0,0 +1,264 @@
+package batch;
+
+import domain.EffectStep;
+import domain.SaveOptions;
+import repo.ImageSaver;
+import service.EffectPipeline;
+import service.ProgressMonitor;
+import service.RasterEffects;
+import service.StripProcessor;
+import service.TileScheduler;
+import util.Metrics;
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs an effect recipe over many files without the UI. Decoding, processing and encoding are separate stages with
+ * their own threads, so a file can be decoded while another is processed and a third is written. At most
+ * maxInFlight images are in memory at the same time.
+ */
+public class BatchRunner {
+    /**
+     * Timings of one file, in milliseconds. If the file failed, error is set and the timings after it are 0.
+     */
+    public static class FileReport {
+        public final File input;
+        /**
+         * Where the result is written; it gets a numbered name if another input would be written to the same file
+         */
+        public File output;
+        public long decodeMs, processMs, encodeMs;
+        public int width, height;
+        public String error;
+
+        FileReport(File input) {
+            this.input = input;
+        }
+
+        public double getMegapixelsPerSecond() {
+            return processMs == 0 ? 0 : (double) width * height / 1000 / processMs;
+        }
+    }
+
+    private final List<EffectStep> recipe;
+    private final File outputDir;
+    private final String format;
+    private final int workers;
+    private final int ioThreads;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private int stripHeight;
+    private float jpegQuality = SaveOptions.DEFAULT.getJpegQuality();
+
+    /**
+     * @param format output format (png, jpg, ...), or null to keep the format of each input file
+     * @param workers threads that run the effects
+     * @param ioThreads threads for decoding, and as many for encoding
+     * @param maxInFlight maximum number of images decoded but not yet written
+     * @param timeoutMillis processing a file fails if it takes longer than this; 0 means no limit
+     */
+    public BatchRunner(List<EffectStep> recipe, File outputDir, String format, int workers, int ioThreads, int maxInFlight, long timeoutMillis) {
+        this.recipe = recipe;
+        this.outputDir = outputDir;
+        this.format = format;
+        this.workers = workers;
+        this.ioThreads = ioThreads;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Streams every file through a {@link StripProcessor} instead of decoding it whole, so files bigger than the heap
+     * can be processed. Only recipes of neighbourhood effects can be streamed.
+     * @param stripHeight rows per strip; 0 turns streaming off
+     */
+    public void setStripHeight(int stripHeight) {
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * @param jpegQuality between 0 and 1, for jpeg outputs
+     */
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Processes all the files and waits for them to finish. Failures are reported per file and don't stop the others.
+     */
+    public List<FileReport> run(List<File> inputs) throws InterruptedException {
+        if(!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IllegalArgumentException("Could not create " + outputDir);
+
+        // the files are processed in parallel, so each image is processed on a single thread. The pipeline is compiled
+        // once (decoding the SUBTRACTION operands once); with a timeout, each run attaches its own monitor.
+        TileScheduler scheduler = timeoutMillis > 0 ? new TileScheduler(1, 0).withThreadMonitors() : new TileScheduler(1, 0);
+        RasterEffects effects = new RasterEffects(scheduler);
+        EffectPipeline pipeline = EffectPipeline.compile(recipe, effects, BatchRunner::decode);
+        StripProcessor stripProcessor = null;
+        if(stripHeight > 0) {
+            StripProcessor.haloRows(recipe); // fails early if the recipe can't be streamed
+            stripProcessor = new StripProcessor(effects, stripHeight);
+        }
+
+        ExecutorService decodePool = Executors.newFixedThreadPool(ioThreads);
+        ExecutorService processPool = Executors.newFixedThreadPool(workers);
+        ExecutorService encodePool = Executors.newFixedThreadPool(ioThreads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        List<FileReport> reports = new ArrayList<>();
+        Set<String> outputNames = new HashSet<>();
+        for(File input : inputs) {
+            FileReport report = new FileReport(input);
+            report.output = getOutputFile(input, outputNames);
+            reports.add(report);
+        }
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        try {
+            for(FileReport report : reports) {
+                File input = report.input;
+                inFlight.acquire();
+                CompletableFuture<?> future;
+                if(stripProcessor != null) {
+                    // reading and writing happen strip by strip, inside the processing stage
+                    StripProcessor processor = stripProcessor;
+                    future = CompletableFuture.runAsync(() -> timed(report, () -> stream(processor, input, report), 1), processPool);
+                }
+                else {
+                    future = CompletableFuture
+                            .supplyAsync(() -> timed(report, () -> decode(input.getPath()), 0), decodePool)
+                            .thenApplyAsync(image -> timed(report, () -> process(image, pipeline, scheduler), 1), processPool)
+                            .thenAcceptAsync(image -> timed(report, () -> encode(image, report), 2), encodePool);
+                }
+                future = future.whenComplete((v, ex) -> {
+                    if(ex != null)
+                        report.error = String.valueOf(ex.getCause() != null ? ex.getCause() : ex);
+                    inFlight.release();
+                });
+                futures.add(future);
+            }
+
+            for(CompletableFuture<?> future : futures) {
+                try {
+                    future.join();
+                } catch (RuntimeException ignored) {
+                    // already in the report
+                }
+            }
+        } finally {
+            decodePool.shutdownNow();
+            processPool.shutdownNow();
+            encodePool.shutdownNow();
+        }
+
+        return reports;
+    }
+
+    private interface Step<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs the step and records its duration in the report
+     * @param stage 0 = decode, 1 = process, 2 = encode
+     */
+    private static <T> T timed(FileReport report, Step<T> step, int stage) {
+        long start = System.nanoTime();
+        try {
+            T res = step.run();
+            if(res instanceof BufferedImage && stage == 0) {
+                report.width = ((BufferedImage) res).getWidth();
+                report.height = ((BufferedImage) res).getHeight();
+            }
+            return res;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            if(stage == 0)
+                report.decodeMs = ms;
+            else if(stage == 1)
+                report.processMs = ms;
+            else
+                report.encodeMs = ms;
+        }
+    }
+
+    @SuppressWarnings("try")
+    private BufferedImage process(BufferedImage image, EffectPipeline pipeline, TileScheduler scheduler) throws IOException {
+        try (Metrics.Sample ignored = Metrics.global().start(EffectPipeline.operationName(recipe), image)) {
+            if(timeoutMillis <= 0)
+                return pipeline.run(image);
+
+            // the deadline is checked by the scheduler, which finds the monitor of this file on the current thread
+            ProgressMonitor monitor = new ProgressMonitor(null, timeoutMillis);
+            scheduler.setThreadMonitor(monitor);
+            try {
+                return pipeline.run(image, monitor);
+            } finally {
+                scheduler.setThreadMonitor(null);
+            }
+        }
+    }
+
+    private static BufferedImage decode(String path) {
+        try {
+            BufferedImage image = ImageIO.read(new File(path));
+            if(image == null)
+                throw new IllegalArgumentException("Unsupported image format: " + path);
+            return RasterUtils.toIntRaster(image);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Void stream(StripProcessor processor, File input, FileReport report) throws IOException {
+        Dimension size = processor.process(input, report.output, getOutputFormat(input), recipe);
+        report.width = size.width;
+        report.height = size.height;
+        return null;
+    }
+
+    private String getOutputFormat(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        return format != null ? format : dot > 0 ? name.substring(dot + 1) : "png";
+    }
+
+    /**
+     * @param taken the names already given to other inputs (in lower case, for case insensitive file systems); the
+     * new one is added. Inputs that would get the same name (a.png and a.jpg with --format, or files with the same
+     * name in different directories) are numbered: a.png, a-2.png, ...
+     */
+    private File getOutputFile(File input, Set<String> taken) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        String extension = "." + getOutputFormat(input);
+
+        String outputName = baseName + extension;
+        for(int n=2; !taken.add(outputName.toLowerCase(Locale.ROOT)); ++n)
+            outputName = baseName + "-" + n + extension;
+        return new File(outputDir, outputName);
+    }
+
+    private Void encode(BufferedImage image, FileReport report) throws IOException {
+        ImageSaver.write(image, report.output, new SaveOptions(getOutputFormat(report.input), jpegQuality, SaveOptions.DEFAULT.getPngCompressionLevel()));
+        return null;
+    }
+}
@@ -1,23 +1,75 @@
 package controller;
 
+import domain.EffectStep;
 import domain.EffectType;
 import domain.LensFlareCoords;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import repo.TwoImageRepo;
 import service.EffectService;
+import service.FxImageAdapter;
 import service.ImageService;
+import service.PreviewRenderer;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Collections;
 
 public class MainWindowController {
+    /**
+     * How long the user has to stop typing before the effect is applied on the full image
+     */
+    private static final long PREVIEW_DEBOUNCE_MILLIS = 300;
+
     private ImageService imageService;
     private EffectService effectService;
+    private final FxImageAdapter resultAdapter = new FxImageAdapter();
+    private PreviewRenderer previewRenderer;
+    // the latest render; results of older ones that were already on their way are ignored
+    private long renderRequest;
+
+    /**
+     * Delivers the renders of one request on the FX thread
+     */
+    private class RenderListener implements PreviewRenderer.Listener {
+        private final long request;
+
+        RenderListener(long request) {
+            this.request = request;
+        }
+
+        @Override
+        public void onPreview(BufferedImage preview) {
+            Platform.runLater(() -> {
+                if(request == renderRequest)
+                    resultImageView.setImage(resultAdapter.toFXImage(preview));
+            });
+        }
+
+        @Override
+        public void onResult(BufferedImage result) {
+            Platform.runLater(() -> {
+                if(request != renderRequest)
+                    return;
+                imageService.setResultRaster(result);
+                resultImageView.setImage(resultAdapter.toFXImage(result));
+                setResultPending(false);
+            });
+        }
+
+        @Override
+        public void onError(Exception e) {
+            e.printStackTrace();
+        }
+    }
 
     @FXML
     public ImageView sourceImageView;
@@ -31,11 +83,32 @@ public class MainWindowController {
     @FXML
     public TextField coordsField;
 
+    // they use the stored result, which is the one of the previous settings until the final render is delivered
+    @FXML
+    public Button saveButton;
+    @FXML
+    public Button useResultButton;
+
+    /**
+     * Stops the renders and deletes the temporary files; called when the application exits
+     */
+    public void shutdown() {
+        previewRenderer.shutdown();
+        try {
+            imageService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @FXML
     private void initialize() {
         TwoImageRepo repo = new TwoImageRepo();
         imageService = new ImageService(repo);
         effectService = new EffectService(repo);
+        // the preview only has to be as big as the view showing it
+        previewRenderer = new PreviewRenderer(effectService.getRasterEffects(), imageService::loadSeparateImage,
+                (int) resultImageView.getFitWidth(), (int) resultImageView.getFitHeight(), PREVIEW_DEBOUNCE_MILLIS);
         effectSelectBox.getItems().setAll(EffectType.values());
         effectSelectBox.getSelectionModel().select(0);
 
@@ -52,8 +125,7 @@ public class MainWindowController {
     @FXML
     public void loadImage() throws Exception {
         String path = loadImagePopup();
-        imageService.loadImage(path);
-        sourceImageView.setImage(imageService.getSourceImage());
+        sourceImageView.setImage(imageService.loadImage(path));
         apply(effectSelectBox.getSelectionModel().getSelectedItem());
     }
 
@@ -75,7 +147,12 @@ public class MainWindowController {
 
     @FXML
     public void saveImage() {
-        imageService.saveImage();
+        imageService.saveImage().whenComplete((file, ex) -> {
+            if(ex != null) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, "Could not save the image: " + cause.getMessage()).show());
+            }
+        });
     }
 
     @FXML
@@ -83,47 +160,81 @@ public class MainWindowController {
         sourceImageView.setImage(imageService.useResultAsSource());
     }
 
+    @FXML
+    public void undo() throws Exception {
+        showSource(imageService.undo());
+    }
+
+    @FXML
+    public void redo() throws Exception {
+        showSource(imageService.redo());
+    }
+
+    /**
+     * Shows a source image that changed and applies the selected effect on it
+     */
+    private void showSource(Image source) throws Exception {
+        if(source == null)
+            return;
+
+        sourceImageView.setImage(source);
+        apply(effectSelectBox.getSelectionModel().getSelectedItem());
+    }
+
+    /**
+     * Applies the effect on a preview first and on the full image in the background. Only subtraction is applied
+     * directly, since it asks for the other image.
+     */
     public void apply(EffectType effectType) throws Exception {
-        Image newImage = null;
-        if(effectType == EffectType.GREYSCALE)
-            newImage = effectService.getGreyscale();
-        else if(effectType == EffectType.CONTRAST)
-        {
-            int value = getIntValue();
-            newImage = effectService.getContrastEdit(value);
-        }
-        else if (effectType == EffectType.GAMMA_CORRECTION) {
-            double value = getDoubleValue();
-            newImage = effectService.getGammaCorrection(value);
-        }
-        else if(effectType == EffectType.SUBTRACTION) {
-            newImage = effectService.getSubtraction(imageService.loadSeparateImage(loadImagePopup()));
+        if(effectType == EffectType.SUBTRACTION) {
+            previewRenderer.cancel();
+            ++renderRequest;
+            BufferedImage newImage = effectService.getSubtraction(imageService.loadSeparateImage(loadImagePopup()));
+            resultImageView.setImage(resultAdapter.toFXImage(newImage));
+            setResultPending(false);
+            return;
         }
-        else if(effectType == EffectType.MEDIAN_FILTER) {
-            newImage = effectService.getMedianFilter(getIntValue());
+
+        EffectStep step = getEffectStep(effectType);
+        if(step != null) {
+            setResultPending(true);
+            previewRenderer.render(imageService.getSourceRaster(), Collections.singletonList(step), new RenderListener(++renderRequest));
         }
+    }
+
+    /**
+     * Disables the actions on the result while the final render of the current settings hasn't been delivered. A
+     * failed render keeps them disabled, since the stored result is still the one of other settings.
+     */
+    private void setResultPending(boolean pending) {
+        saveButton.setDisable(pending);
+        useResultButton.setDisable(pending);
+    }
+
+    /**
+     * @return the effect with the value from the text box, or null if the value can't be used
+     */
+    private EffectStep getEffectStep(EffectType effectType) throws Exception {
+        if(effectType == EffectType.GREYSCALE || effectType == EffectType.THINNING)
+            return new EffectStep(effectType, 0);
+        else if(effectType == EffectType.CONTRAST || effectType == EffectType.MEDIAN_FILTER
+                || effectType == EffectType.CONTOUR || effectType == EffectType.SKELETON)
+            return new EffectStep(effectType, getIntValue());
+        else if(effectType == EffectType.GAMMA_CORRECTION)
+            return new EffectStep(effectType, getDoubleValue());
         else if(effectType == EffectType.SCALE)
         {
             if(getDoubleValue() != 0)
-                newImage = effectService.scale(getDoubleValue());
-        }
-        else if(effectType == EffectType.CONTOUR) {
-            newImage = effectService.contour(getIntValue());
-        }
-        else if(effectType == EffectType.SKELETON) {
-            newImage = effectService.skeleton(getIntValue());
-        }
-        else if(effectType == EffectType.THINNING) {
-            newImage = effectService.thinning();
+                return new EffectStep(effectType, getDoubleValue());
+            return null;
         }
         else if(effectType == EffectType.LENS_FLARE) {
-            newImage = effectService.getLensFlare(getLensFlareCoords());
+            // parsed here so that invalid coordinates fail right away
+            getLensFlareCoords();
+            return new EffectStep(effectType, 0, coordsField.getText());
         }
         else
             throw new Exception("Unrecognised effect selected");
-
-        if(newImage != null)
-            resultImageView.setImage(newImage);
     }
 
     private int getIntValue() {
@@ -168,20 +279,13 @@ public class MainWindowController {
             return;
 
         try {
-            resultImageView.setImage(effectService.getLensFlare(getLensFlareCoords()));
-        } catch (IOException e) {
+            apply(EffectType.LENS_FLARE);
+        } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     private LensFlareCoords getLensFlareCoords() {
-        String text = coordsField.getText();
-        String[] split = text.split(",");
-        LensFlareCoords res = new LensFlareCoords();
-        res.center.x = Integer.parseInt(split[0]);
-        res.center.y = Integer.parseInt(split[1]);
-        res.sun.x = Integer.parseInt(split[2]);
-        res.sun.y = Integer.parseInt(split[3]);
-        return res;
+        return LensFlareCoords.parse(coordsField.getText());
     }
 }
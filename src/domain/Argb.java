@@ -0,0 +1,43 @@
+package domain;
+
+/**
+ * Helpers for packed ARGB pixels (0xAARRGGBB), the format returned by BufferedImage.getRGB
+ */
+public final class Argb {
+    private Argb() {
+    }
+
+    public static int alpha(int argb) {
+        return argb >>> 24;
+    }
+
+    public static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    public static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    public static int blue(int argb) {
+        return argb & 0xFF;
+    }
+
+    /**
+     * Packs an opaque color. Behaves like new Color(red, green, blue).getRGB(), including the exception for
+     * values outside [0, 255].
+     */
+    public static int rgb(int red, int green, int blue) {
+        if(((red | green | blue) & ~0xFF) != 0)
+            throw new IllegalArgumentException("Color parameter outside of expected range: " + red + ", " + green + ", " + blue);
+
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * @return the sum of the red, green and blue channels
+     */
+    public static int total(int argb) {
+        return ((argb >> 16) & 0xFF) + ((argb >> 8) & 0xFF) + (argb & 0xFF);
+    }
+}
@@ -0,0 +1,16 @@
+package domain;
+
+public enum BlendMode {
+    /**
+     * The sprite is drawn over the image, like Graphics.drawImage
+     */
+    NORMAL,
+    /**
+     * The colors are added, brightening the image
+     */
+    ADD,
+    /**
+     * Inverse of multiplying the inverted colors; brightens like ADD but never burns out to white
+     */
+    SCREEN
+}
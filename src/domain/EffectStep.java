@@ -0,0 +1,83 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One effect of a recipe, with its parameters.
+ * <p>
+ * Text format: the effect type followed by its value, e.g. "CONTRAST 50" or "GREYSCALE". SUBTRACTION takes the path
+ * of the other image and LENS_FLARE the coordinates "centerX,centerY,sunX,sunY" instead of a value.
+ */
+public class EffectStep {
+    private final EffectType type;
+    private final double value;
+    private final String argument;
+
+    public EffectStep(EffectType type, double value) {
+        this(type, value, null);
+    }
+
+    public EffectStep(EffectType type, double value, String argument) {
+        this.type = type;
+        this.value = value;
+        this.argument = argument;
+    }
+
+    public EffectType getType() {
+        return type;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public int getIntValue() {
+        return (int) value;
+    }
+
+    /**
+     * @return the path of the other image for SUBTRACTION, the coordinates for LENS_FLARE, otherwise null
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not a valid step
+     */
+    public static EffectStep parse(String text) {
+        String[] split = text.trim().split("\\s+", 2);
+        EffectType type = EffectType.valueOf(split[0].toUpperCase());
+        String rest = split.length > 1 ? split[1].trim() : "";
+
+        if(type == EffectType.SUBTRACTION || type == EffectType.LENS_FLARE) {
+            if(rest.isEmpty())
+                throw new IllegalArgumentException(type + " needs an argument");
+            return new EffectStep(type, 0, rest);
+        }
+
+        return new EffectStep(type, rest.isEmpty() ? 0 : Double.parseDouble(rest));
+    }
+
+    /**
+     * Parses several steps separated by ';' or new lines. Empty steps and lines starting with # are ignored.
+     */
+    public static List<EffectStep> parseRecipe(String text) {
+        List<EffectStep> steps = new ArrayList<>();
+        for(String step : text.split("[;\\n\\r]")) {
+            step = step.trim();
+            if(!step.isEmpty() && !step.startsWith("#"))
+                steps.add(parse(step));
+        }
+
+        return steps;
+    }
+
+    @Override
+    public String toString() {
+        if(argument != null)
+            return type + " " + argument;
+        return type + " " + value;
+    }
+}
@@ -0,0 +1,39 @@
+package domain;
+
+/**
+ * One sprite of a lens flare
+ */
+public class FlareElement {
+    private final String sprite;
+    private final double distance;
+    private final double scale;
+    private final BlendMode blendMode;
+
+    /**
+     * @param sprite file name of the sprite, e.g. Lens_Sun.png
+     * @param distance where the sprite is placed: 0 = on the sun, 1 = in the center, 2 = symmetric to the sun
+     * @param scale size relative to the other sprites
+     */
+    public FlareElement(String sprite, double distance, double scale, BlendMode blendMode) {
+        this.sprite = sprite;
+        this.distance = distance;
+        this.scale = scale;
+        this.blendMode = blendMode;
+    }
+
+    public String getSprite() {
+        return sprite;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public BlendMode getBlendMode() {
+        return blendMode;
+    }
+}
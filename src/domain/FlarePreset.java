@@ -0,0 +1,54 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The sprites that make up a lens flare, drawn in order.
+ * <p>
+ * Text format: one sprite per line, "sprite distance scale [blend mode]", e.g. "Lens_Sun.png 0 1 NORMAL".
+ * Empty lines and lines starting with # are ignored.
+ */
+public class FlarePreset {
+    public static final FlarePreset DEFAULT = parse(String.join("\n",
+            "Lens_Sun.png 0 1",
+            "Lens_GreenCircle.png 1.9 1",
+            "Lens_Specular.png 1.25 1",
+            "Lens_GreenCircle2.png 1.35 1",
+            "Lens_GreenCircle3.png 0.75 1",
+            "Lens_PurpleCircle.png 0.4 1",
+            "Lens_Rainbow.png 2 1"
+    ));
+
+    private final List<FlareElement> elements;
+
+    public FlarePreset(List<FlareElement> elements) {
+        this.elements = Collections.unmodifiableList(new ArrayList<>(elements));
+    }
+
+    public List<FlareElement> getElements() {
+        return elements;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line is not valid
+     */
+    public static FlarePreset parse(String text) {
+        List<FlareElement> elements = new ArrayList<>();
+        for(String line : text.split("\\R")) {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] split = line.split("\\s+");
+            if(split.length < 3 || split.length > 4)
+                throw new IllegalArgumentException("Invalid flare element: " + line);
+
+            BlendMode mode = split.length == 4 ? BlendMode.valueOf(split[3].toUpperCase()) : BlendMode.NORMAL;
+            elements.add(new FlareElement(split[0], Double.parseDouble(split[1]), Double.parseDouble(split[2]), mode));
+        }
+
+        return new FlarePreset(elements);
+    }
+}
@@ -8,4 +8,17 @@ public class LensFlareCoords {
 
     public Point sun;
     public Point center;
+
+    /**
+     * @param text "centerX,centerY,sunX,sunY"
+     */
+    public static LensFlareCoords parse(String text) {
+        String[] split = text.split(",");
+        LensFlareCoords res = new LensFlareCoords();
+        res.center.x = Integer.parseInt(split[0].trim());
+        res.center.y = Integer.parseInt(split[1].trim());
+        res.sun.x = Integer.parseInt(split[2].trim());
+        res.sun.y = Integer.parseInt(split[3].trim());
+        return res;
+    }
 }
@@ -0,0 +1,20 @@
+package domain;
+
+import java.awt.*;
+
+/**
+ * Per-pixel operation working on packed ARGB values (0xAARRGGBB), so no objects are created for each pixel.
+ * The coordinates are only needed by effects that combine the pixel with something else, like a second image.
+ */
+@FunctionalInterface
+public interface PixelKernel {
+    int apply(int argb, int x, int y);
+
+    /**
+     * Adapts an old style effect. This allocates a Color and a PixelInfoDto for each pixel, so it should only be used
+     * for effects that were not ported yet.
+     */
+    static PixelKernel fromEffect(SinglePixelEffect effect) {
+        return (argb, x, y) -> effect.apply(new PixelInfoDto(new Color(argb), x, y)).getRGB();
+    }
+}
@@ -0,0 +1,40 @@
+package domain;
+
+/**
+ * How an image is encoded when saving it
+ */
+public class SaveOptions {
+    public static final SaveOptions DEFAULT = new SaveOptions(null, 0.9f, 6);
+
+    private final String format;
+    private final float jpegQuality;
+    private final int pngCompressionLevel;
+
+    /**
+     * @param format png, jpg, bmp...; null means the extension of the file
+     * @param jpegQuality between 0 (smallest) and 1 (best)
+     * @param pngCompressionLevel between 0 (fastest) and 9 (smallest)
+     */
+    public SaveOptions(String format, float jpegQuality, int pngCompressionLevel) {
+        if(jpegQuality < 0 || jpegQuality > 1)
+            throw new IllegalArgumentException("JPEG quality must be between 0 and 1");
+        if(pngCompressionLevel < 0 || pngCompressionLevel > 9)
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9");
+
+        this.format = format;
+        this.jpegQuality = jpegQuality;
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public int getPngCompressionLevel() {
+        return pngCompressionLevel;
+    }
+}
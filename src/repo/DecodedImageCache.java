@@ -0,0 +1,183 @@
+package repo;
+
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded images, so files that are loaded again (the other image of a subtraction, the same source in several
+ * sessions) are not decoded again. An entry is keyed by the canonical path, modification time and size of the file,
+ * so a file that changed is decoded again.
+ * <p>
+ * The cache is a LRU weighted by the size of the pixels: the least recently used images are dropped when the total
+ * goes over the limit. The images are also only softly referenced, so the garbage collector can take them back when
+ * the heap runs low.
+ * <p>
+ * The images are shared by everyone who loads the same file, so they must not be modified.
+ */
+public class DecodedImageCache {
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final DecodedImageCache SHARED = new DecodedImageCache(DEFAULT_MAX_BYTES);
+
+    private static class Key {
+        final String path;
+        final long modified;
+        final long size;
+
+        Key(File file) throws IOException {
+            File canonical = file.getCanonicalFile();
+            this.path = canonical.getPath();
+            this.modified = canonical.lastModified();
+            this.size = canonical.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return path.equals(other.path) && modified == other.modified && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(modified) * 17 + Long.hashCode(size);
+        }
+    }
+
+    private static class Entry {
+        final SoftReference<BufferedImage> image;
+        final long bytes;
+
+        Entry(BufferedImage image) {
+            this.image = new SoftReference<>(image);
+            this.bytes = (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DecodedImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache used by the repo
+     */
+    public static DecodedImageCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the decoded file, in an int based format (see {@link RasterUtils#toIntRaster}), from the cache if
+     * possible
+     * @return null if the file is not an image ImageIO can read
+     */
+    public BufferedImage load(File file) throws IOException {
+        Key key = new Key(file);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            BufferedImage image = entry == null ? null : entry.image.get();
+            if(image != null) {
+                ++hits;
+                return image;
+            }
+            if(entry != null) { // collected by the garbage collector
+                entries.remove(key);
+                bytes -= entry.bytes;
+            }
+            ++misses;
+        }
+
+        // decoded without holding the lock, so other files can be served meanwhile
+        BufferedImage image = ImageIO.read(file);
+        if(image == null)
+            return null;
+        image = RasterUtils.toIntRaster(image);
+
+        synchronized (this) {
+            Entry entry = new Entry(image);
+            if(entry.bytes <= maxBytes) {
+                removePath(key.path); // older versions of the file, or the same one decoded concurrently
+                entries.put(key, entry);
+                bytes += entry.bytes;
+                evict();
+            }
+        }
+        return image;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 if nothing was loaded yet
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return bytes of pixels in the cache, including images the garbage collector may have taken back already
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DecodedImageCache[%d images, %d MB, %d hits, %d misses, %d evictions]",
+                entries.size(), bytes >> 20, hits, misses, evictions);
+    }
+
+    private void removePath(String path) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if(e.getKey().path.equals(path)) {
+                bytes -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().bytes;
+            it.remove();
+            ++evictions;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package repo;
+
+import util.RasterUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Undo / redo history of an image. Each version is a grid of tiles; a tile that didn't change since the previous
+ * version is shared with it, so a version only costs the tiles that changed. Tiles are stored compressed (difference
+ * to the previous pixel, then deflate).
+ * <p>
+ * When the compressed tiles take more than the memory budget, the least recently used ones are moved to a spill file
+ * and read back when needed. Moving between versions only decodes the tiles that differ between them. The space of
+ * dropped tiles in the spill file is reclaimed: the file is emptied when no spilled tile is left, and rewritten with
+ * only the live tiles once most of it is garbage. Close the history to delete it.
+ */
+public class ImageHistory implements Closeable {
+    public static final int TILE_SIZE = 64;
+    public static final int DEFAULT_MAX_VERSIONS = 50;
+
+    /**
+     * The spill file is compacted when it has at least this many bytes of dropped tiles, and they are more than half
+     * of it
+     */
+    private static final long SPILL_COMPACT_MIN_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * A compressed tile, either in memory (data) or in the spill file (offset)
+     */
+    private static class Tile {
+        byte[] data;
+        long offset = -1;
+        int size; // compressed bytes
+        int length; // pixels
+        int refs;
+    }
+
+    private static class Version {
+        final int width, height, type;
+        final int tilesX;
+        final Tile[] tiles;
+
+        Version(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.tiles = new Tile[tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+        }
+
+        boolean sameSize(Version other) {
+            return other != null && width == other.width && height == other.height && type == other.type;
+        }
+    }
+
+    private final long memoryBudget;
+    private final File spillDirectory;
+    private final int maxVersions;
+
+    private final List<Version> versions = new ArrayList<>();
+    private int current = -1;
+    private BufferedImage currentImage;
+
+    // tiles in memory, least recently used first
+    private final LinkedHashMap<Tile, Tile> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsage;
+    private File spillFile;
+    private RandomAccessFile spill;
+    private final Set<Tile> spilled = new HashSet<>();
+    private long spillGarbage; // bytes of dropped tiles in the spill file
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * @param memoryBudget bytes of compressed tiles kept in memory
+     * @param spillDirectory where the tiles over the budget are written
+     */
+    public ImageHistory(long memoryBudget, File spillDirectory) {
+        this(memoryBudget, spillDirectory, DEFAULT_MAX_VERSIONS);
+    }
+
+    /**
+     * @param maxVersions the oldest versions are dropped after this many
+     */
+    public ImageHistory(long memoryBudget, File spillDirectory, int maxVersions) {
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+        this.maxVersions = maxVersions;
+    }
+
+    /**
+     * Adds a new version after the current one, dropping the versions that could have been redone.
+     * @param image must not be modified afterwards; the history compares the next version against it
+     */
+    public synchronized void push(BufferedImage image) throws IOException {
+        while(versions.size() > current + 1)
+            release(versions.remove(versions.size() - 1));
+        reclaimSpill();
+
+        BufferedImage img = RasterUtils.toIntRaster(image);
+        Version previous = current >= 0 ? versions.get(current) : null;
+        Version version = new Version(img.getWidth(), img.getHeight(), img.getType());
+        boolean compare = version.sameSize(previous);
+        int[] pixels = RasterUtils.getPixels(img);
+        int[] previousPixels = compare ? RasterUtils.getPixels(currentImage) : null;
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+
+        for(int i=0; i<version.tiles.length; ++i) {
+            if(compare && sameTile(pixels, previousPixels, version, i)) {
+                version.tiles[i] = previous.tiles[i];
+            }
+            else {
+                int length = readTile(pixels, version, i, tile);
+                version.tiles[i] = compress(tile, length);
+                inMemory.put(version.tiles[i], version.tiles[i]);
+                memoryUsage += version.tiles[i].data.length;
+            }
+            version.tiles[i].refs++;
+        }
+
+        versions.add(version);
+        current = versions.size() - 1;
+        currentImage = img;
+
+        while(versions.size() > maxVersions) {
+            release(versions.remove(0));
+            --current;
+        }
+        evict();
+        reclaimSpill();
+    }
+
+    public synchronized boolean canUndo() {
+        return current > 0;
+    }
+
+    public synchronized boolean canRedo() {
+        return current < versions.size() - 1;
+    }
+
+    /**
+     * @return the previous version, as a new image
+     * @throws IllegalStateException if there is nothing to undo
+     */
+    public synchronized BufferedImage undo() throws IOException {
+        if(!canUndo())
+            throw new IllegalStateException("Nothing to undo");
+        return moveTo(current - 1);
+    }
+
+    /**
+     * @return the next version, as a new image
+     * @throws IllegalStateException if there is nothing to redo
+     */
+    public synchronized BufferedImage redo() throws IOException {
+        if(!canRedo())
+            throw new IllegalStateException("Nothing to redo");
+        return moveTo(current + 1);
+    }
+
+    /**
+     * @return the image of the current version, or null if the history is empty
+     */
+    public synchronized BufferedImage getCurrent() {
+        return currentImage;
+    }
+
+    public synchronized int getVersionCount() {
+        return versions.size();
+    }
+
+    /**
+     * @return bytes of compressed tiles in memory
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return bytes of the spill file, including the dropped tiles not reclaimed yet
+     */
+    public synchronized long getSpillSize() throws IOException {
+        return spill == null ? 0 : spill.length();
+    }
+
+    /**
+     * Drops all the versions, and empties the spill file
+     */
+    public synchronized void clear() throws IOException {
+        for(Version version : versions)
+            release(version);
+        versions.clear();
+        current = -1;
+        currentImage = null;
+        reclaimSpill();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        clear();
+        deflater.end();
+        inflater.end();
+        if(spill != null) {
+            spill.close();
+            if(!spillFile.delete())
+                spillFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * Builds the image of another version from the current one, decoding only the tiles that differ
+     */
+    private BufferedImage moveTo(int index) throws IOException {
+        Version from = versions.get(current);
+        Version to = versions.get(index);
+
+        BufferedImage res = to.sameSize(from) ? RasterUtils.copy(currentImage) : new BufferedImage(to.width, to.height, to.type);
+        int[] pixels = RasterUtils.getPixels(res);
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        for(int i=0; i<to.tiles.length; ++i) {
+            if(to.sameSize(from) && from.tiles[i] == to.tiles[i])
+                continue;
+            decompress(to.tiles[i], tile);
+            writeTile(pixels, to, i, tile);
+        }
+
+        current = index;
+        currentImage = res;
+        evict();
+        return res;
+    }
+
+    private static boolean sameTile(int[] pixels, int[] previous, Version version, int index) {
+        int x0 = (index % version.tilesX) * TILE_SIZE;
+        int y0 = (index / version.tilesX) * TILE_SIZE;
+        int columns = Math.min(TILE_SIZE, version.width - x0);
+        int rows = Math.min(TILE_SIZE, version.height - y0);
+        for(int y=y0; y<y0+rows; ++y) {
+            int start = y * version.width + x0;
+            for(int i=start; i<start+columns; ++i) {
+                if(pixels[i] != previous[i])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the tile out of the image, row after row without padding
+     * @return the number of pixels of the tile
+     */
+    private static int readTile(int[] pixels, Version version, int index, int[] tile) {
+        int x0 = (index % version.tilesX) * TILE_SIZE;
+        int y0 = (index / version.tilesX) * TILE_SIZE;
+        int columns = Math.min(TILE_SIZE, version.width - x0);
+        int rows = Math.min(TILE_SIZE, version.height - y0);
+        for(int y=0; y<rows; ++y)
+            System.arraycopy(pixels, (y0 + y) * version.width + x0, tile, y * columns, columns);
+        return rows * columns;
+    }
+
+    private static void writeTile(int[] pixels, Version version, int index, int[] tile) {
+        int x0 = (index % version.tilesX) * TILE_SIZE;
+        int y0 = (index / version.tilesX) * TILE_SIZE;
+        int columns = Math.min(TILE_SIZE, version.width - x0);
+        int rows = Math.min(TILE_SIZE, version.height - y0);
+        for(int y=0; y<rows; ++y)
+            System.arraycopy(tile, y * columns, pixels, (y0 + y) * version.width + x0, columns);
+    }
+
+    /**
+     * Stores each pixel as its difference to the previous one (per channel), which is mostly zeros and small values
+     * on photos, then deflates it
+     */
+    private Tile compress(int[] tile, int length) {
+        byte[] raw = new byte[length * 4];
+        int previous = 0;
+        for(int i=0; i<length; ++i) {
+            int p = tile[i];
+            raw[4*i] = (byte) ((p >>> 24) - (previous >>> 24));
+            raw[4*i+1] = (byte) ((p >>> 16) - (previous >>> 16));
+            raw[4*i+2] = (byte) ((p >>> 8) - (previous >>> 8));
+            raw[4*i+3] = (byte) (p - previous);
+            previous = p;
+        }
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[raw.length + 64];
+        int size = 0;
+        while(!deflater.finished()) {
+            if(size == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+
+        Tile res = new Tile();
+        res.data = Arrays.copyOf(buffer, size);
+        res.size = size;
+        res.length = length;
+        return res;
+    }
+
+    private void decompress(Tile tile, int[] dst) throws IOException {
+        byte[] data = tile.data;
+        if(data == null)
+            data = readSpilled(tile);
+        else
+            inMemory.get(tile); // marks it as the most recently used
+
+        byte[] raw = new byte[tile.length * 4];
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            int size = 0;
+            while(size < raw.length && !inflater.finished())
+                size += inflater.inflate(raw, size, raw.length - size);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted history tile", e);
+        }
+
+        int previous = 0;
+        for(int i=0; i<tile.length; ++i) {
+            int a = ((previous >>> 24) + raw[4*i]) & 0xFF;
+            int r = ((previous >>> 16) + raw[4*i+1]) & 0xFF;
+            int g = ((previous >>> 8) + raw[4*i+2]) & 0xFF;
+            int b = (previous + raw[4*i+3]) & 0xFF;
+            previous = a << 24 | r << 16 | g << 8 | b;
+            dst[i] = previous;
+        }
+    }
+
+    private byte[] readSpilled(Tile tile) throws IOException {
+        byte[] data = new byte[tile.size];
+        spill.seek(tile.offset);
+        spill.readFully(data);
+        return data;
+    }
+
+    private void release(Version version) {
+        for(Tile tile : version.tiles) {
+            if(--tile.refs > 0)
+                continue;
+            if(tile.data != null) {
+                inMemory.remove(tile);
+                memoryUsage -= tile.data.length;
+                tile.data = null;
+            }
+            else if(spilled.remove(tile)) {
+                spillGarbage += tile.size;
+                tile.offset = -1;
+            }
+        }
+    }
+
+    /**
+     * Gives back the space of the dropped tiles in the spill file: empties it if no tile is left, or rewrites it with
+     * the live tiles once the dropped ones take most of it
+     */
+    private void reclaimSpill() throws IOException {
+        if(spill == null || spillGarbage == 0)
+            return;
+        if(spilled.isEmpty()) {
+            spill.setLength(0);
+            spillGarbage = 0;
+            return;
+        }
+        if(spillGarbage < SPILL_COMPACT_MIN_BYTES || spillGarbage * 2 < spill.length())
+            return;
+
+        File compactedFile = File.createTempFile("history", ".spill", spillDirectory);
+        compactedFile.deleteOnExit();
+        RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw");
+        try {
+            for(Tile tile : spilled) {
+                byte[] data = readSpilled(tile);
+                tile.offset = compacted.getFilePointer();
+                compacted.write(data);
+            }
+        } catch (IOException e) {
+            compacted.close();
+            compactedFile.delete();
+            throw e;
+        }
+
+        spill.close();
+        if(!spillFile.delete())
+            spillFile.deleteOnExit();
+        spill = compacted;
+        spillFile = compactedFile;
+        spillGarbage = 0;
+    }
+
+    /**
+     * Moves the least recently used tiles to the spill file until the memory usage is within the budget
+     */
+    private void evict() throws IOException {
+        Iterator<Tile> it = inMemory.keySet().iterator();
+        while(memoryUsage > memoryBudget && it.hasNext()) {
+            Tile tile = it.next();
+            if(spill == null) {
+                spillFile = File.createTempFile("history", ".spill", spillDirectory);
+                spillFile.deleteOnExit(); // in case the history is never closed
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+
+            tile.offset = spill.length();
+            spill.seek(tile.offset);
+            spill.write(tile.data);
+            memoryUsage -= tile.data.length;
+            tile.data = null;
+            spilled.add(tile);
+            it.remove();
+        }
+    }
+}
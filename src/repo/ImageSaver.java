@@ -0,0 +1,294 @@
+package repo;
+
+import domain.SaveOptions;
+import util.Metrics;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Encodes and writes images. The image is written to a temporary file next to the target, which then replaces the
+ * target in one step, so a failed or interrupted save never leaves a half written file behind.
+ */
+public class ImageSaver {
+    private final ExecutorService executor;
+
+    /**
+     * @param threads how many images can be encoded at the same time
+     */
+    public ImageSaver(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Saves the image on a background thread
+     * @param image must not be modified until the future completes
+     * @return completes with the target when it was written, or exceptionally with the error
+     */
+    public CompletableFuture<File> saveAsync(RenderedImage image, File target, SaveOptions options) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                write(image, target, options);
+                return target;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Saves the image on the calling thread
+     * @throws IllegalArgumentException if there is no writer for the format
+     */
+    @SuppressWarnings("try")
+    public static void write(RenderedImage image, File target, SaveOptions options) throws IOException {
+        String format = options.getFormat() != null ? options.getFormat() : formatOf(target);
+        boolean jpeg = format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg");
+        if(jpeg && image.getColorModel().hasAlpha())
+            image = withoutAlpha(image);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if(!writers.hasNext())
+            throw new IllegalArgumentException("No writer for format " + format);
+        ImageWriter writer = writers.next();
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if(param.canWriteCompressed()) {
+            if(jpeg) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(options.getJpegQuality());
+            }
+            else if(format.equalsIgnoreCase("png")) {
+                // the png writer maps quality 1 to no compression and 0 to the best deflate level
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(1 - options.getPngCompressionLevel() / 9f);
+            }
+        }
+
+        File directory = target.getAbsoluteFile().getParentFile();
+        // the prefix has to be at least 3 characters long, even for a 1 character file name
+        File temp = File.createTempFile(".save-" + target.getName(), ".tmp", directory);
+        try (Metrics.Sample ignored = Metrics.global().start("repo.save", (long) image.getWidth() * image.getHeight())) {
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(temp)) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * @return the extension of the file name (not of the directories), or png if it has none
+     */
+    public static String formatOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && dot < name.length() - 1 ? name.substring(dot + 1).toLowerCase() : "png";
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return the image with its alpha ignored. RGB images are wrapped without copying the pixels, like the opaque
+     * output of the strip processor; other color models (indexed, grey with alpha) are drawn over black into a copy.
+     */
+    private static RenderedImage withoutAlpha(RenderedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        if(colorModel.getColorSpace().isCS_sRGB() && colorModel.getNumColorComponents() == 3 && !colorModel.isAlphaPremultiplied()
+                && (colorModel instanceof DirectColorModel || colorModel instanceof ComponentColorModel))
+            return new OpaqueImage(image);
+
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            if(image instanceof BufferedImage)
+                g.drawImage((BufferedImage) image, 0, 0, null);
+            else
+                g.drawRenderedImage(image, null);
+        } finally {
+            g.dispose();
+        }
+        return rgb;
+    }
+
+    /**
+     * Read-only view of an RGB image with alpha, with only the red, green and blue bands of its tiles
+     */
+    private static class OpaqueImage implements RenderedImage {
+        private static final int[] RGB_BANDS = {0, 1, 2};
+
+        private final RenderedImage image;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+
+        OpaqueImage(RenderedImage image) {
+            this.image = image;
+            this.sampleModel = image.getSampleModel().createSubsetSampleModel(RGB_BANDS);
+            ColorModel source = image.getColorModel();
+            if(source instanceof DirectColorModel) {
+                DirectColorModel direct = (DirectColorModel) source;
+                int masks = direct.getRedMask() | direct.getGreenMask() | direct.getBlueMask();
+                this.colorModel = new DirectColorModel(Integer.SIZE - Integer.numberOfLeadingZeros(masks),
+                        direct.getRedMask(), direct.getGreenMask(), direct.getBlueMask());
+            } else {
+                this.colorModel = new ComponentColorModel(source.getColorSpace(), false, false, ColorModel.OPAQUE, source.getTransferType());
+            }
+        }
+
+        private static Raster rgb(Raster raster) {
+            return raster.createChild(raster.getMinX(), raster.getMinY(), raster.getWidth(), raster.getHeight(),
+                    raster.getMinX(), raster.getMinY(), RGB_BANDS);
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return rgb(image.getTile(tileX, tileY));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            return rgb(image.getData(rect));
+        }
+
+        @Override
+        public Raster getData() {
+            return rgb(image.getData());
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if(raster == null)
+                raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(getWidth(), getHeight()), new Point(getMinX(), getMinY()));
+
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(getMinX(), getMinY(), getWidth(), getHeight()));
+            if(!bounds.isEmpty())
+                raster.setRect(getData(bounds));
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return image.getProperty(name);
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return image.getPropertyNames();
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return image.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return image.getHeight();
+        }
+
+        @Override
+        public int getMinX() {
+            return image.getMinX();
+        }
+
+        @Override
+        public int getMinY() {
+            return image.getMinY();
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return image.getNumXTiles();
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return image.getNumYTiles();
+        }
+
+        @Override
+        public int getMinTileX() {
+            return image.getMinTileX();
+        }
+
+        @Override
+        public int getMinTileY() {
+            return image.getMinTileY();
+        }
+
+        @Override
+        public int getTileWidth() {
+            return image.getTileWidth();
+        }
+
+        @Override
+        public int getTileHeight() {
+            return image.getTileHeight();
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return image.getTileGridXOffset();
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return image.getTileGridYOffset();
+        }
+    }
+}
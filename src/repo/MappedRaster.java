@@ -0,0 +1,553 @@
+package repo;
+
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ARGB raster stored in a memory-mapped file instead of the heap, for images too big for a BufferedImage.
+ * <p>
+ * The file has a 20 byte header (magic, width, height, tile size, flags) followed by square tiles of TILE_SIZE x TILE_SIZE
+ * packed ARGB ints, row-major inside a tile, tiles in row-major order. Tiles on the right and bottom edges are padded
+ * to the full size. The file is mapped in regions of whole rows of tiles (up to REGION_TILES tiles each), the first
+ * time one of their tiles is used, so even huge images only need a few mappings; the OS pages the tiles in and out as
+ * needed, so the heap only holds the small buffer objects.
+ * <p>
+ * Different threads can read and write different pixels at the same time. Closing unmaps the file, so no thread may
+ * use the raster or the buffers of its tiles after that.
+ */
+public class MappedRaster implements Closeable {
+    public static final int TILE_SIZE = 256;
+
+    private static final int MAGIC = 0x494d4754; // "IMGT"
+    private static final int HEADER_BYTES = 20;
+    private static final int FLAG_ALPHA = 1;
+    private static final long TILE_BYTES = (long) TILE_SIZE * TILE_SIZE * 4;
+    // 1 GB, well below the 2 GB limit of a mapping
+    private static final int REGION_TILES = 4096;
+    // pixels decoded at once by read
+    private static final int READ_STRIP_PIXELS = 16 * 1024 * 1024;
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final File file;
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final boolean hasAlpha;
+    private final int tilesPerRegion;
+    private final MappedByteBuffer[] mapped;
+    // read without the lock, so a tile mapped by one thread is seen fully built by the others
+    private final AtomicReferenceArray<IntBuffer> tiles;
+    private boolean deleteOnClose;
+
+    private MappedRaster(File file, int width, int height, boolean hasAlpha, boolean create) throws IOException {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = hasAlpha;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesPerRegion = tilesX <= REGION_TILES ? REGION_TILES / tilesX * tilesX : REGION_TILES;
+        this.mapped = new MappedByteBuffer[(tilesX * tilesY + tilesPerRegion - 1) / tilesPerRegion];
+        this.tiles = new AtomicReferenceArray<>(tilesX * tilesY);
+        this.access = new RandomAccessFile(file, "rw");
+        this.channel = access.getChannel();
+
+        if(create) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(TILE_SIZE).putInt(hasAlpha ? FLAG_ALPHA : 0).flip();
+            channel.write(header, 0);
+            // sparse on most file systems: the tiles only take disk space once they are written
+            access.setLength(HEADER_BYTES + TILE_BYTES * tiles.length());
+        }
+    }
+
+    /**
+     * Creates a new raster, with all pixels 0
+     * @param hasAlpha if false, the alpha of the pixels is ignored when the raster is converted to an image
+     */
+    public static MappedRaster create(File file, int width, int height, boolean hasAlpha) throws IOException {
+        if(width < 1 || height < 1)
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        return new MappedRaster(file, width, height, hasAlpha, true);
+    }
+
+    /**
+     * Creates a new raster in a temporary file of the directory, deleted when the raster is closed
+     */
+    public static MappedRaster createTemp(File directory, int width, int height, boolean hasAlpha) throws IOException {
+        File file = File.createTempFile("raster", ".tiles", directory);
+        MappedRaster res = create(file, width, height, hasAlpha);
+        res.deleteOnClose = true;
+        return res;
+    }
+
+    /**
+     * Opens a raster file written earlier
+     */
+    public static MappedRaster open(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.getChannel().read(header, 0);
+        }
+        header.flip();
+        if(header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+            throw new IOException(file + " is not a raster file");
+
+        int width = header.getInt();
+        int height = header.getInt();
+        if(header.getInt() != TILE_SIZE)
+            throw new IOException("Unsupported tile size in " + file);
+        int flags = header.getInt();
+        return new MappedRaster(file, width, height, (flags & FLAG_ALPHA) != 0, false);
+    }
+
+    /**
+     * Decodes an image file into a new raster in the given directory, a strip of rows at a time, so the decoded image
+     * never has to fit in the heap. Readers that can't seek to a row (PNG, JPEG) decode the file from the start for
+     * every strip, so the strips are as high as READ_STRIP_PIXELS allows, in whole rows of tiles.
+     */
+    public static MappedRaster read(File image, File directory) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
+            if(in == null)
+                throw new IOException("Could not open " + image);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if(!readers.hasNext())
+                throw new IllegalArgumentException("Unsupported image format: " + image);
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int stripHeight = Math.max(1, READ_STRIP_PIXELS / width / TILE_SIZE) * TILE_SIZE;
+
+                MappedRaster res = null;
+                try {
+                    for(int y=0; y<height; y+=stripHeight) {
+                        int rows = Math.min(stripHeight, height - y);
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        param.setSourceRegion(new Rectangle(0, y, width, rows));
+                        BufferedImage strip = RasterUtils.toIntRaster(reader.read(0, param));
+
+                        if(res == null)
+                            res = createTemp(directory, width, height, strip.getColorModel().hasAlpha());
+                        int opaque = RasterUtils.opaqueMask(strip);
+                        int[] pixels = RasterUtils.getPixels(strip);
+                        if(opaque != 0) {
+                            for(int i=0; i<pixels.length; ++i)
+                                pixels[i] |= opaque;
+                        }
+                        res.setRows(y, rows, pixels);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if(res != null)
+                        res.close();
+                    throw e;
+                }
+                return res;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Copies a BufferedImage into a new raster
+     */
+    public static MappedRaster fromImage(BufferedImage image, File directory) throws IOException {
+        MappedRaster res = createTemp(directory, image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha());
+        int[] row = new int[image.getWidth()];
+        for(int y=0; y<image.getHeight(); ++y) {
+            image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+            res.setRows(y, 1, row);
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy in a new temporary file of the directory. The file is copied by the OS, without going through
+     * the heap.
+     */
+    public MappedRaster copy(File directory) throws IOException {
+        File copyFile = File.createTempFile("raster", ".tiles", directory);
+        Files.copy(file.toPath(), copyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        MappedRaster res = open(copyFile);
+        res.deleteOnClose = true;
+        return res;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * The pixels of a tile, mapped on first use. Pixel (x, y) of the tile is at index y * TILE_SIZE + x; only use
+     * absolute get / put, the buffer is shared between threads.
+     */
+    public IntBuffer getTile(int tileX, int tileY) {
+        int index = tileY * tilesX + tileX;
+        IntBuffer tile = tiles.get(index);
+        if(tile != null)
+            return tile;
+
+        synchronized (mapped) {
+            tile = tiles.get(index);
+            if(tile == null) {
+                int region = index / tilesPerRegion;
+                if(mapped[region] == null) {
+                    int firstTile = region * tilesPerRegion;
+                    long bytes = TILE_BYTES * Math.min(tilesPerRegion, tiles.length() - firstTile);
+                    try {
+                        mapped[region] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + TILE_BYTES * firstTile, bytes);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Could not map tile " + tileX + "," + tileY + " of " + file, e);
+                    }
+                }
+
+                ByteBuffer bytes = mapped[region].duplicate();
+                bytes.position((int) (TILE_BYTES * (index - region * tilesPerRegion)));
+                bytes.limit((int) (bytes.position() + TILE_BYTES));
+                tile = bytes.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+                tiles.set(index, tile);
+            }
+            return tile;
+        }
+    }
+
+    public int getPixel(int x, int y) {
+        return getTile(x / TILE_SIZE, y / TILE_SIZE).get((y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE);
+    }
+
+    public void setPixel(int x, int y, int argb) {
+        getTile(x / TILE_SIZE, y / TILE_SIZE).put((y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE, argb);
+    }
+
+    /**
+     * Reads whole rows into dst, row-major (index = (y - fromY) * width + x)
+     */
+    public void getRows(int fromY, int rows, int[] dst) {
+        for(int y=fromY; y<fromY+rows; ++y) {
+            int offset = (y - fromY) * width;
+            for(int tileX=0; tileX<tilesX; ++tileX) {
+                IntBuffer tile = getTile(tileX, y / TILE_SIZE).duplicate();
+                tile.position((y % TILE_SIZE) * TILE_SIZE);
+                tile.get(dst, offset + tileX * TILE_SIZE, Math.min(TILE_SIZE, width - tileX * TILE_SIZE));
+            }
+        }
+    }
+
+    /**
+     * Writes whole rows from src, row-major (index = (y - fromY) * width + x)
+     */
+    public void setRows(int fromY, int rows, int[] src) {
+        for(int y=fromY; y<fromY+rows; ++y) {
+            int offset = (y - fromY) * width;
+            for(int tileX=0; tileX<tilesX; ++tileX) {
+                IntBuffer tile = getTile(tileX, y / TILE_SIZE).duplicate();
+                tile.position((y % TILE_SIZE) * TILE_SIZE);
+                tile.put(src, offset + tileX * TILE_SIZE, Math.min(TILE_SIZE, width - tileX * TILE_SIZE));
+            }
+        }
+    }
+
+    /**
+     * @return the rows as a TYPE_INT_ARGB / TYPE_INT_RGB image
+     */
+    public BufferedImage getRowsImage(int fromY, int rows) {
+        BufferedImage res = new BufferedImage(width, rows, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = RasterUtils.getPixels(res);
+        getRows(fromY, rows, pixels);
+        int opaque = RasterUtils.opaqueMask(res);
+        if(opaque != 0) {
+            for(int i=0; i<pixels.length; ++i)
+                pixels[i] &= ~opaque;
+        }
+        return res;
+    }
+
+    /**
+     * Writes the rows of an image (of the same width) starting at row fromY
+     */
+    public void setRowsImage(int fromY, BufferedImage image) {
+        int[] pixels = RasterUtils.getPixels(image);
+        int opaque = RasterUtils.opaqueMask(image);
+        if(opaque != 0) {
+            pixels = pixels.clone();
+            for(int i=0; i<pixels.length; ++i)
+                pixels[i] |= opaque;
+        }
+        setRows(fromY, image.getHeight(), pixels);
+    }
+
+    /**
+     * @return the raster as a BufferedImage, if it fits in one
+     */
+    public BufferedImage toImage() {
+        if((long) width * height > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("The raster is too big for a BufferedImage");
+        return getRowsImage(0, height);
+    }
+
+    /**
+     * @return a view that ImageIO writers can save tile by tile, without a full copy in the heap
+     */
+    public RenderedImage asRenderedImage() {
+        return new TileImage();
+    }
+
+    /**
+     * Writes the modified tiles to the disk. Not needed for other readers on the same machine, only for durability.
+     */
+    public void flush() {
+        synchronized (mapped) {
+            for(MappedByteBuffer buffer : mapped) {
+                if(buffer != null)
+                    buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Unmaps the file and closes it, deleting temporary files. If the JVM doesn't allow unmapping, the mappings (and
+     * the disk space of a deleted file) are only released once the buffers are garbage collected, and on Windows a
+     * temporary file can't be deleted until then, so it is deleted on exit instead.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (mapped) {
+            for(int i=0; i<tiles.length(); ++i)
+                tiles.set(i, null);
+            for(int i=0; i<mapped.length; ++i) {
+                if(mapped[i] != null)
+                    UNMAPPER.unmap(mapped[i]);
+                mapped[i] = null;
+            }
+        }
+        channel.close();
+        access.close();
+        if(deleteOnClose && !file.delete())
+            file.deleteOnExit();
+    }
+
+    /**
+     * Releases mapped buffers right away instead of when they are garbage collected: Unsafe.invokeCleaner on Java 9+,
+     * the buffer's cleaner on Java 8. Neither is public API, so they are found by reflection, and if neither is
+     * available nothing is unmapped.
+     */
+    private interface Unmapper {
+        void unmap(MappedByteBuffer buffer);
+
+        static Unmapper find() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                return buffer -> invoke(invokeCleaner, unsafe, buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8
+            }
+            try {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> invoke(clean, invoke(cleaner, buffer));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return buffer -> { };
+            }
+        }
+
+        static Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not unmap a buffer", e);
+            }
+        }
+    }
+
+    /**
+     * Read-only RenderedImage over the tiles
+     */
+    private class TileImage implements RenderedImage {
+        private final ColorModel colorModel = new BufferedImage(1, 1, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB).getColorModel();
+        private final SampleModel sampleModel = colorModel.createCompatibleSampleModel(TILE_SIZE, TILE_SIZE);
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+            IntBuffer tile = MappedRaster.this.getTile(tileX, tileY).duplicate();
+            tile.position(0);
+            tile.get(pixels);
+            return Raster.createWritableRaster(sampleModel, new DataBufferInt(pixels, pixels.length), new Point(tileX * TILE_SIZE, tileY * TILE_SIZE));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            return copyData(Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y)));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if(raster == null)
+                raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), new Point(0, 0));
+
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            int[] row = new int[TILE_SIZE];
+            for(int y=bounds.y; y<bounds.y+bounds.height; ++y) {
+                for(int x=bounds.x; x<bounds.x+bounds.width; ) {
+                    int count = Math.min(TILE_SIZE - x % TILE_SIZE, bounds.x + bounds.width - x);
+                    IntBuffer tile = MappedRaster.this.getTile(x / TILE_SIZE, y / TILE_SIZE).duplicate();
+                    tile.position((y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE);
+                    tile.get(row, 0, count);
+                    raster.setDataElements(x, y, count, 1, count == TILE_SIZE ? row : Arrays.copyOf(row, count));
+                    x += count;
+                }
+            }
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return tilesX;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return tilesY;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -1,23 +1,101 @@
 package repo;
 
-import javax.imageio.ImageIO;
+import domain.SaveOptions;
+import util.Metrics;
+import util.RasterUtils;
+
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TwoImageRepo implements Closeable {
+    /**
+     * Bytes of compressed history tiles kept in memory; older ones are moved to a temporary file
+     */
+    public static final long HISTORY_MEMORY_BUDGET = 64L * 1024 * 1024;
 
-public class TwoImageRepo {
-    private BufferedImage sourceImage;
-    private BufferedImage resultImage;
+    /**
+     * Previous mapped sources kept for undo; each one is a file as big as the image
+     */
+    public static final int MAPPED_HISTORY_SIZE = 8;
+
+    private final Metrics metrics = Metrics.global();
+    private final DecodedImageCache imageCache;
+    // never modified: the effects only read them and write their results to new images, so they are shared without
+    // copying (the source may also be in the decoded image cache). Results are stored from the effect threads, so the
+    // images are volatile and everything that changes the images (heap or mapped) holds the repo lock.
+    private volatile BufferedImage sourceImage;
+    private volatile BufferedImage resultImage;
     private String crtImagePath;
 
+    // images too big for the heap are kept in memory-mapped files instead. Either the heap images or the mapped ones
+    // are used, never both: loading or setting one kind of image drops the other.
+    private MappedRaster mappedSource;
+    private MappedRaster mappedResult;
+    private final Deque<MappedRaster> mappedUndo = new ArrayDeque<>();
+    private final Deque<MappedRaster> mappedRedo = new ArrayDeque<>();
+
+    // mapped rasters being saved, with the number of saves; closing them waits for the saves to finish
+    private final Map<MappedRaster, Integer> savingMapped = new IdentityHashMap<>();
+    private final Map<MappedRaster, Boolean> closeAfterSave = new IdentityHashMap<>();
+
+    private final ImageSaver saver = new ImageSaver(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    // previous versions of the source image. Pushing deflates the whole image, so the history is only changed on its
+    // own thread, in order; reading it waits for the changes queued before.
+    private final ImageHistory history = new ImageHistory(HISTORY_MEMORY_BUDGET, new File(System.getProperty("java.io.tmpdir")));
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "image-history");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> historyWork = CompletableFuture.completedFuture(null);
+
+    private interface HistoryChange {
+        void apply(ImageHistory history) throws IOException;
+    }
+
+    public TwoImageRepo() {
+        this(DecodedImageCache.shared());
+    }
+
+    /**
+     * @param imageCache where the loaded images are decoded; a cache of size 0 decodes every time
+     */
+    public TwoImageRepo(DecodedImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
     /**
      * Loads a new image and sets it as the source image
      * @param path absolute path
      */
     public BufferedImage loadImage(String path) {
-        try {
-            sourceImage = ImageIO.read(new File(path));
-            crtImagePath = path;
+        try (Metrics.Sample sample = metrics.start("repo.load")) {
+            // effects work directly on the int pixel array, so the cache keeps the images in an int based format
+            BufferedImage image = imageCache.load(new File(path));
+            sample.setPixels(image);
+            synchronized (this) {
+                sourceImage = image;
+                resultImage = null;
+                closeAllMapped();
+                crtImagePath = path;
+                changeHistory(history -> {
+                    history.clear();
+                    if(image != null)
+                        history.push(image);
+                });
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -25,48 +103,303 @@ public class TwoImageRepo {
         return sourceImage;
     }
 
-    public BufferedImage loadSeparateImage(String path) {
+    /**
+     * Loads a new source image into a memory-mapped raster in the directory, for images too big for the heap.
+     * The mapped source replaces any previous one.
+     */
+    public MappedRaster loadMappedImage(String path, File directory) throws IOException {
+        MappedRaster raster = MappedRaster.read(new File(path), directory);
+        synchronized (this) {
+            closeAllMapped();
+            mappedSource = raster;
+            sourceImage = null;
+            resultImage = null;
+            changeHistory(ImageHistory::clear);
+            crtImagePath = path;
+        }
+        return raster;
+    }
+
+    public synchronized MappedRaster getMappedSource() {
+        return mappedSource;
+    }
+
+    public synchronized MappedRaster getMappedResult() {
+        return mappedResult;
+    }
+
+    /**
+     * The repo takes ownership of the raster and closes it once it is replaced
+     */
+    public synchronized void setMappedResult(MappedRaster result) {
+        dropMappedResult();
+        mappedResult = result;
+        resultImage = null;
+    }
+
+    /**
+     * Goes back to the previous mapped source. The current one is kept for redo.
+     * @return the new source, or null if there is nothing to undo
+     */
+    public synchronized MappedRaster undoMapped() {
+        if(mappedUndo.isEmpty())
+            return null;
+        mappedRedo.push(mappedSource);
+        mappedSource = mappedUndo.pop();
+        return mappedSource;
+    }
+
+    /**
+     * Goes forward to the mapped source that was undone
+     * @return the new source, or null if there is nothing to redo
+     */
+    public synchronized MappedRaster redoMapped() {
+        if(mappedRedo.isEmpty())
+            return null;
+        mappedUndo.push(mappedSource);
+        mappedSource = mappedRedo.pop();
+        return mappedSource;
+    }
+
+    private void closeAllMapped() {
+        dropMappedResult();
+        closeMapped(mappedSource);
+        while(!mappedUndo.isEmpty())
+            closeMapped(mappedUndo.pop());
+        while(!mappedRedo.isEmpty())
+            closeMapped(mappedRedo.pop());
+        mappedSource = null;
+    }
+
+    /**
+     * Closes the mapped result, unless it is also the source or in the undo history
+     */
+    private void dropMappedResult() {
+        if(mappedResult != mappedSource && !mappedUndo.contains(mappedResult) && !mappedRedo.contains(mappedResult))
+            closeMapped(mappedResult);
+        mappedResult = null;
+    }
+
+    /**
+     * Closes the raster now, or when the saves using it are done
+     */
+    private void closeMapped(MappedRaster raster) {
+        if(raster == null)
+            return;
+        synchronized (savingMapped) {
+            if(savingMapped.containsKey(raster)) {
+                closeAfterSave.put(raster, Boolean.TRUE);
+                return;
+            }
+        }
         try {
-            return ImageIO.read(new File(path));
+            raster.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void saveStarted(MappedRaster raster) {
+        synchronized (savingMapped) {
+            savingMapped.merge(raster, 1, Integer::sum);
+        }
+    }
+
+    private void saveFinished(MappedRaster raster) {
+        synchronized (savingMapped) {
+            if(savingMapped.merge(raster, -1, Integer::sum) > 0)
+                return;
+            savingMapped.remove(raster);
+            if(closeAfterSave.remove(raster) == null)
+                return;
+        }
+        closeMapped(raster);
+    }
+
+    /**
+     * @return the image, which may be shared through the decoded image cache, so it must not be modified
+     */
+    public BufferedImage loadSeparateImage(String path) {
+        try (Metrics.Sample sample = metrics.start("repo.loadSeparate")) {
+            BufferedImage image = imageCache.load(new File(path));
+            sample.setPixels(image);
+            return image;
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * @return the source image itself, without copying it. It is shared, so it must not be modified; use
+     * {@link #copySourceImage} to get one that can be.
+     */
     public BufferedImage getSourceImage() {
-        return getCopy(sourceImage);
+        return sourceImage;
+    }
+
+    /**
+     * @return a copy of the source image that the caller can modify, made with bulk array copies
+     */
+    @SuppressWarnings("try")
+    public BufferedImage copySourceImage() {
+        try (Metrics.Sample ignored = metrics.start("repo.copy", sourceImage)) {
+            return RasterUtils.copy(sourceImage);
+        }
     }
 
     public BufferedImage getResultImage() {
         return resultImage;
     }
 
-    public void setResultImage(BufferedImage resultImage) {
+    /**
+     * The repo takes ownership of the image; it must not be modified afterwards.
+     */
+    public synchronized void setResultImage(BufferedImage resultImage) {
         this.resultImage = resultImage;
+        dropMappedResult();
     }
 
-    public void setSourceToResult() {
-        sourceImage = getCopy(resultImage);
+    /**
+     * Uses the result as the new source. The previous source stays in the history and can be brought back with undo.
+     */
+    @SuppressWarnings("try")
+    public synchronized void setSourceToResult() {
+        if(resultImage != null) {
+            BufferedImage image = resultImage;
+            sourceImage = image;
+            changeHistory(history -> {
+                try (Metrics.Sample ignored = metrics.start("repo.historyPush", image)) {
+                    history.push(image);
+                }
+            });
+        }
+        if(mappedResult != null && mappedResult != mappedSource) {
+            // the previous source stays in its file for undo
+            mappedUndo.push(mappedSource);
+            if(mappedUndo.size() > MAPPED_HISTORY_SIZE)
+                closeMapped(mappedUndo.removeLast());
+            while(!mappedRedo.isEmpty())
+                closeMapped(mappedRedo.pop());
+            mappedSource = mappedResult;
+        }
     }
 
-    public void save() {
-        try {
-            File outputFile = new File(crtImagePath);
-            ImageIO.write(resultImage, crtImagePath.split("\\.")[1], outputFile);
+    public synchronized boolean canUndo() {
+        if(mappedSource != null)
+            return !mappedUndo.isEmpty();
+        awaitHistory();
+        return history.canUndo();
+    }
+
+    public synchronized boolean canRedo() {
+        if(mappedSource != null)
+            return !mappedRedo.isEmpty();
+        awaitHistory();
+        return history.canRedo();
+    }
+
+    /**
+     * Goes back to the previous source image
+     * @return the new source, or null if there is nothing to undo
+     */
+    public synchronized BufferedImage undo() {
+        awaitHistory();
+        if(!history.canUndo())
+            return null;
+        try (Metrics.Sample sample = metrics.start("repo.undo")) {
+            sourceImage = history.undo();
+            sample.setPixels(sourceImage);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return sourceImage;
     }
 
-    private BufferedImage getCopy(BufferedImage img) {
-        BufferedImage cpy = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-        for(int x=0; x<img.getWidth(); ++x) {
-            for(int y=0; y<img.getHeight(); ++y) {
-                cpy.setRGB(x, y, img.getRGB(x, y));
+    /**
+     * Goes forward to the source image that was undone
+     * @return the new source, or null if there is nothing to redo
+     */
+    public synchronized BufferedImage redo() {
+        awaitHistory();
+        if(!history.canRedo())
+            return null;
+        try (Metrics.Sample sample = metrics.start("repo.redo")) {
+            sourceImage = history.redo();
+            sample.setPixels(sourceImage);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return sourceImage;
+    }
+
+    /**
+     * Queues a change of the history after the ones before it
+     */
+    private void changeHistory(HistoryChange change) {
+        historyWork = historyExecutor.submit(() -> {
+            try {
+                change.apply(history);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        });
+    }
+
+    /**
+     * Waits for the queued history changes
+     */
+    private void awaitHistory() {
+        try {
+            historyWork.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
         }
+    }
+
+    /**
+     * Drops the history and deletes its spill file, closes the mapped images and stops the background saves once the
+     * running ones are written. The repo can't be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        historyExecutor.shutdown();
+        awaitHistory();
+        history.close();
+        saver.shutdown();
+        closeAllMapped();
+    }
+
+    /**
+     * Saves the result over the file the source was loaded from, in the background
+     */
+    public synchronized CompletableFuture<File> save() {
+        return save(new File(crtImagePath), SaveOptions.DEFAULT);
+    }
+
+    /**
+     * Saves the result in the background. Editing can go on meanwhile: the image being saved is never modified, and
+     * several saves can run at the same time.
+     * @return completes with the target once it was written, or exceptionally with the error
+     */
+    public synchronized CompletableFuture<File> save(File target, SaveOptions options) {
+        MappedRaster mapped = mappedResult;
+        if(mapped != null) {
+            // mapped results are never modified, only replaced; one that is replaced during the save is closed after it
+            saveStarted(mapped);
+            return saver.saveAsync(mapped.asRenderedImage(), target, options).whenComplete((file, ex) -> saveFinished(mapped));
+        }
+
+        if(resultImage == null)
+            return failed(new IllegalStateException("There is no result to save"));
+        return saver.saveAsync(resultImage, target, options);
+    }
 
-        return cpy;
+    private static CompletableFuture<File> failed(Exception e) {
+        CompletableFuture<File> res = new CompletableFuture<>();
+        res.completeExceptionally(e);
+        return res;
     }
 }
@@ -0,0 +1,110 @@
+package service;
+
+import domain.PixelKernel;
+
+/**
+ * Row loops for the per-channel effects (greyscale, lookup tables, subtraction) and for the brightness sums of the
+ * contour. They are written the way HotSpot's C2 compiler vectorizes loops: counted loops over int arrays, with no
+ * calls or branches in the body, so they run with the SIMD instructions of the processor (SSE, AVX2 or AVX-512,
+ * picked by the JVM at startup) without depending on the incubating Vector API. Loops the JIT can't vectorize
+ * (the table lookups) still save the virtual call per pixel of a PixelKernel.
+ * <p>
+ * They produce exactly the same pixels as the PixelKernel versions. {@link #forKernel} picks the loop for a kernel
+ * at runtime; -Dimagini.simd=false keeps every effect on the PixelKernel path.
+ */
+final class ChannelKernels {
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("imagini.simd"));
+
+    /**
+     * (x * DIV3_MUL) >>> DIV3_SHIFT == x / 3 for every sum of three channels (0 to 765)
+     */
+    private static final int DIV3_MUL = 43691;
+    private static final int DIV3_SHIFT = 17;
+
+    /**
+     * Processes a row of pixels
+     */
+    interface RowKernel {
+        /**
+         * @param offset index of the first pixel of the row, in both arrays
+         * @param opaque the opaque mask of the result image; its bits are cleared from the results
+         */
+        void apply(int[] source, int[] result, int offset, int y, int width, int opaque);
+    }
+
+    private ChannelKernels() {
+    }
+
+    /**
+     * @return the row loop giving the same pixels as the kernel, or null if there is none (or they are disabled)
+     */
+    static RowKernel forKernel(PixelKernel kernel) {
+        if(!ENABLED)
+            return null;
+        if(kernel == RasterEffects.GREYSCALE)
+            return (source, result, offset, y, width, opaque) -> greyscale(source, result, offset, offset + width, opaque);
+
+        if(kernel instanceof ChannelLut.Kernel) {
+            int[][] tables = ((ChannelLut.Kernel) kernel).lut.getChannelTables();
+            if(tables == null) // invalid entries have to throw when used, like Argb.rgb does
+                return null;
+            return (source, result, offset, y, width, opaque) -> lut(source, result, offset, offset + width, tables[0], tables[1], tables[2], opaque);
+        }
+
+        if(kernel instanceof RasterEffects.SubtractionKernel) {
+            RasterEffects.SubtractionKernel subtraction = (RasterEffects.SubtractionKernel) kernel;
+            int[] other = subtraction.otherPixels;
+            int otherWidth = subtraction.otherWidth;
+            return (source, result, offset, y, width, opaque) -> subtract(source, offset, other, y * otherWidth, result, width, opaque);
+        }
+        return null;
+    }
+
+    /**
+     * The average of the red, green and blue channels, as an opaque grey
+     */
+    static void greyscale(int[] source, int[] result, int from, int to, int opaque) {
+        int mask = ~opaque;
+        for(int i=from; i<to; ++i) {
+            int p = source[i];
+            int val = (((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF)) * DIV3_MUL >>> DIV3_SHIFT;
+            result[i] = (0xFF000000 | val * 0x010101) & mask;
+        }
+    }
+
+    /**
+     * Maps each channel through its table; the tables hold the values already shifted to the channel
+     */
+    static void lut(int[] source, int[] result, int from, int to, int[] red, int[] green, int[] blue, int opaque) {
+        int mask = ~opaque;
+        for(int i=from; i<to; ++i) {
+            int p = source[i];
+            result[i] = (0xFF000000 | red[(p >> 16) & 0xFF] | green[(p >> 8) & 0xFF] | blue[p & 0xFF]) & mask;
+        }
+    }
+
+    /**
+     * Subtracts the channels of the other pixels, clamping at 0
+     */
+    static void subtract(int[] source, int sourceOffset, int[] other, int otherOffset, int[] result, int length, int opaque) {
+        int mask = ~opaque;
+        for(int i=0; i<length; ++i) {
+            int p = source[sourceOffset + i];
+            int q = other[otherOffset + i];
+            int r = Math.max(0, ((p >> 16) & 0xFF) - ((q >> 16) & 0xFF));
+            int g = Math.max(0, ((p >> 8) & 0xFF) - ((q >> 8) & 0xFF));
+            int b = Math.max(0, (p & 0xFF) - (q & 0xFF));
+            result[sourceOffset + i] = (0xFF000000 | r << 16 | g << 8 | b) & mask;
+        }
+    }
+
+    /**
+     * The sum of the red, green and blue channels of each pixel (see Argb.total)
+     */
+    static void totals(int[] source, int sourceOffset, int[] totals, int length) {
+        for(int i=0; i<length; ++i) {
+            int p = source[sourceOffset + i];
+            totals[i] = ((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package service;
+
+import domain.Argb;
+import domain.PixelKernel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A 256 entry lookup table applied to the red, green and blue channels of a pixel.
+ * Tone curves like contrast and gamma only have 256 possible inputs, so the formula is evaluated once per value
+ * instead of three times per pixel.
+ */
+public final class ChannelLut {
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<Integer, ChannelLut> contrastCache = lruCache();
+    private static final Map<Double, ChannelLut> gammaCache = lruCache();
+
+    /**
+     * Entries may be outside [0, 255] if the formula produced such values; they are only rejected when a pixel
+     * actually uses them, the same way new Color(...) used to reject them.
+     */
+    private final int[] table;
+    private volatile int[][] channelTables;
+
+    private ChannelLut(int[] table) {
+        this.table = table;
+    }
+
+    /**
+     * Builds the table by evaluating the formula for every value in [0, 255]
+     */
+    public static ChannelLut of(IntUnaryOperator formula) {
+        int[] table = new int[256];
+        for(int i=0; i<256; ++i)
+            table[i] = formula.applyAsInt(i);
+
+        return new ChannelLut(table);
+    }
+
+    public static ChannelLut identity() {
+        return of(val -> val);
+    }
+
+    /**
+     * @param contrast value in [-160, 160]; values outside are clamped
+     */
+    public static ChannelLut contrast(int contrast) {
+        int clamped = Math.max(-160, Math.min(160, contrast));
+
+        synchronized (contrastCache) {
+            return contrastCache.computeIfAbsent(clamped, c -> {
+                double factor = (double)(259 * (c + 255)) / (255 * (259 - c));
+                return of(val -> {
+                    int res = (int) (factor * (val - 128) + 128);
+                    return Math.max(0, Math.min(255, res));
+                });
+            });
+        }
+    }
+
+    public static ChannelLut gamma(double gamma) {
+        synchronized (gammaCache) {
+            return gammaCache.computeIfAbsent(gamma, g -> of(val -> (int) (Math.pow((double) val / 255, g) * 255)));
+        }
+    }
+
+    /**
+     * Fuses two tables into one, so applying the result is the same as applying this table and then the next one,
+     * but takes a single pass over the image.
+     */
+    public ChannelLut andThen(ChannelLut next) {
+        int[] fused = new int[256];
+        for(int i=0; i<256; ++i) {
+            int val = table[i];
+            // invalid entries are kept as they are, so they are still reported when used
+            fused[i] = (val & ~0xFF) != 0 ? val : next.table[val];
+        }
+
+        return new ChannelLut(fused);
+    }
+
+    public int map(int value) {
+        return table[value];
+    }
+
+    /**
+     * @return the opaque pixel obtained by mapping each channel of the given pixel
+     */
+    public int apply(int argb) {
+        return Argb.rgb(table[Argb.red(argb)], table[Argb.green(argb)], table[Argb.blue(argb)]);
+    }
+
+    public PixelKernel asKernel() {
+        return new Kernel(this);
+    }
+
+    /**
+     * @return the table shifted to the position of the red, green and blue channel, so a pixel is mapped by or-ing
+     * three lookups; null if some entries are outside [0, 255]
+     */
+    int[][] getChannelTables() {
+        int[][] res = channelTables;
+        if(res == null) {
+            res = new int[3][256];
+            for(int i=0; i<256; ++i) {
+                if((table[i] & ~0xFF) != 0)
+                    return null;
+                res[0][i] = table[i] << 16;
+                res[1][i] = table[i] << 8;
+                res[2][i] = table[i];
+            }
+            channelTables = res;
+        }
+        return res;
+    }
+
+    /**
+     * The table as a kernel; RasterEffects recognises it and maps whole rows at once
+     */
+    static final class Kernel implements PixelKernel {
+        final ChannelLut lut;
+
+        Kernel(ChannelLut lut) {
+            this.lut = lut;
+        }
+
+        @Override
+        public int apply(int argb, int x, int y) {
+            return lut.apply(argb);
+        }
+    }
+
+    private static <K> Map<K, ChannelLut> lruCache() {
+        return new LinkedHashMap<K, ChannelLut>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, ChannelLut> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+}
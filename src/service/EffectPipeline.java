@@ -0,0 +1,207 @@
+package service;
+
+import domain.EffectStep;
+import domain.FlarePreset;
+import domain.LensFlareCoords;
+import domain.PixelKernel;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An ordered list of effects applied one after the other, like pressing "Use as input" after each of them, but
+ * without keeping the intermediate images.
+ * <p>
+ * Adjacent per-pixel effects (greyscale, contrast, gamma, subtraction) are fused into a single pass over the image:
+ * contrast and gamma tables are combined into one table, and the other effects are chained pixel by pixel. Only the
+ * effects that need the neighbours of a pixel (median, contour, ...) or change the size of the image get an image of
+ * their own. Lens flare is split in its contrast edit, which is fused with the per-pixel effects before it, and the
+ * drawing. Without such effects the flare gets the same image on every run (e.g. the source), so the contrast edit
+ * is made once per image by {@link RasterEffects#lensFlare} instead, and moving the flare only redraws around it.
+ */
+public class EffectPipeline {
+    /**
+     * A pass over the whole image
+     */
+    private interface Stage {
+        BufferedImage apply(BufferedImage image) throws IOException;
+    }
+
+    /**
+     * Creates the kernel of a per-pixel effect for the image it will be applied to
+     */
+    private interface KernelFactory {
+        PixelKernel create(BufferedImage image);
+    }
+
+    private final List<EffectStep> steps;
+    private final List<Stage> stages;
+
+    private EffectPipeline(List<EffectStep> steps, List<Stage> stages) {
+        this.steps = steps;
+        this.stages = stages;
+    }
+
+    /**
+     * @param imageLoader loads the other image of SUBTRACTION steps (once, when compiling)
+     * @throws IllegalArgumentException if a step is missing its argument or the other image can't be loaded
+     */
+    public static EffectPipeline compile(List<EffectStep> steps, RasterEffects effects, Function<String, BufferedImage> imageLoader) {
+        List<Stage> stages = new ArrayList<>();
+        List<KernelFactory> kernels = new ArrayList<>();
+        ChannelLut lut = null;
+
+        for(EffectStep step : steps) {
+            switch (step.getType()) {
+                case CONTRAST:
+                    lut = fuse(lut, ChannelLut.contrast(step.getIntValue()));
+                    continue;
+                case GAMMA_CORRECTION:
+                    lut = fuse(lut, ChannelLut.gamma(step.getValue()));
+                    continue;
+                case GREYSCALE:
+                    flushLut(lut, kernels);
+                    lut = null;
+                    kernels.add(image -> RasterEffects.GREYSCALE);
+                    continue;
+                case SUBTRACTION:
+                    flushLut(lut, kernels);
+                    lut = null;
+                    BufferedImage other = imageLoader.apply(step.getArgument());
+                    if(other == null)
+                        throw new IllegalArgumentException("Could not load " + step.getArgument());
+                    kernels.add(image -> RasterEffects.subtractionKernel(image, other));
+                    continue;
+                case LENS_FLARE:
+                    if(lut == null && kernels.isEmpty()) {
+                        stages.add(flareStage(step, effects));
+                        continue;
+                    }
+                    lut = fuse(lut, ChannelLut.contrast(RasterEffects.LENS_FLARE_CONTRAST));
+                    break;
+                default:
+                    break;
+            }
+
+            // the step needs the whole image, so the per-pixel effects before it get their own pass
+            flushLut(lut, kernels);
+            lut = null;
+            flushKernels(kernels, stages, effects);
+            stages.add(bufferedStage(step, effects));
+        }
+
+        flushLut(lut, kernels);
+        flushKernels(kernels, stages, effects);
+
+        return new EffectPipeline(new ArrayList<>(steps), stages);
+    }
+
+    public List<EffectStep> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the name the runs of the steps are recorded under in the metrics: effect.TYPE for a single step,
+     * effect.PIPELINE for several
+     */
+    public static String operationName(List<EffectStep> steps) {
+        return steps.size() == 1 ? "effect." + steps.get(0).getType() : "effect.PIPELINE";
+    }
+
+    /**
+     * @return the number of passes over the image, after fusing the per-pixel effects
+     */
+    public int getStageCount() {
+        return stages.size();
+    }
+
+    /**
+     * @param source only read
+     * @return a new image (or the source itself if there are no steps)
+     */
+    public BufferedImage run(BufferedImage source) throws IOException {
+        BufferedImage image = source;
+        for(Stage stage : stages)
+            image = stage.apply(image);
+
+        return image;
+    }
+
+    /**
+     * Runs the pipeline reporting each stage to the monitor. To be cancellable, the pipeline has to be compiled with
+     * effects whose scheduler has the same monitor attached.
+     */
+    public BufferedImage run(BufferedImage source, ProgressMonitor monitor) throws IOException {
+        BufferedImage image = source;
+        for(int i=0; i<stages.size(); ++i) {
+            monitor.checkpoint();
+            monitor.beginStage(i, stages.size());
+            image = stages.get(i).apply(image);
+        }
+
+        monitor.done();
+        return image;
+    }
+
+    private static ChannelLut fuse(ChannelLut first, ChannelLut second) {
+        return first == null ? second : first.andThen(second);
+    }
+
+    private static void flushLut(ChannelLut lut, List<KernelFactory> kernels) {
+        if(lut != null) {
+            PixelKernel kernel = lut.asKernel();
+            kernels.add(image -> kernel);
+        }
+    }
+
+    private static void flushKernels(List<KernelFactory> kernels, List<Stage> stages, RasterEffects effects) {
+        if(kernels.isEmpty())
+            return;
+
+        List<KernelFactory> factories = new ArrayList<>(kernels);
+        kernels.clear();
+        stages.add(image -> effects.applyPixelKernel(image, chain(factories, image)));
+    }
+
+    private static PixelKernel chain(List<KernelFactory> factories, BufferedImage image) {
+        PixelKernel res = factories.get(0).create(image);
+        for(int i=1; i<factories.size(); ++i) {
+            PixelKernel first = res;
+            PixelKernel next = factories.get(i).create(image);
+            res = (argb, x, y) -> next.apply(first.apply(argb, x, y), x, y);
+        }
+
+        return res;
+    }
+
+    /**
+     * Lens flare with its contrast edit, made once for each input image
+     */
+    private static Stage flareStage(EffectStep step, RasterEffects effects) {
+        LensFlareCoords coords = LensFlareCoords.parse(step.getArgument());
+        return image -> effects.lensFlare(image, coords, FlarePreset.DEFAULT);
+    }
+
+    private static Stage bufferedStage(EffectStep step, RasterEffects effects) {
+        switch (step.getType()) {
+            case MEDIAN_FILTER:
+                return image -> effects.medianFilter(image, step.getIntValue());
+            case SCALE:
+                return image -> effects.scale(image, step.getValue());
+            case CONTOUR:
+                return image -> effects.contour(image, step.getIntValue());
+            case SKELETON:
+                return image -> effects.skeleton(image, step.getIntValue(), SkeletonEngine.Metric.RAY_8);
+            case THINNING:
+                return effects::thinning;
+            case LENS_FLARE:
+                LensFlareCoords coords = LensFlareCoords.parse(step.getArgument());
+                return image -> effects.lensFlareOnBase(image, coords, FlarePreset.DEFAULT);
+            default:
+                throw new IllegalArgumentException("Unrecognised effect " + step.getType());
+        }
+    }
+}
@@ -1,641 +1,216 @@
 package service;
 
+import domain.EffectStep;
+import domain.FlarePreset;
 import domain.LensFlareCoords;
-import domain.PixelInfoDto;
-import domain.Point;
-import domain.SinglePixelEffect;
-import javafx.embed.swing.SwingFXUtils;
-import javafx.scene.image.Image;
+import repo.MappedRaster;
 import repo.TwoImageRepo;
+import util.Metrics;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 
-import static java.lang.Math.max;
-import static java.lang.Math.min;
-
+/**
+ * Applies the effects on the source image of the repo and saves the result in the repo.
+ * The effects themselves are in {@link RasterEffects}. The results are plain BufferedImages; use a
+ * {@link FxImageAdapter} to show them in JavaFX.
+ */
 public class EffectService {
-    private final TwoImageRepo repo;
-
-    private class PixelValues {
-        public int red, green, blue;
+    /**
+     * An effect applied to the source image
+     */
+    private interface Effect<E extends Exception> {
+        BufferedImage apply(BufferedImage source) throws E;
+    }
 
-        public PixelValues(int red, int green, int blue) {
-            this.red = red;
-            this.green = green;
-            this.blue = blue;
-        }
+    private final Metrics metrics = Metrics.global();
+    private final TwoImageRepo repo;
+    private final RasterEffects effects;
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "effect-task");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-        public int getTotal() {
-            return red + green + blue;
-        }
+    public EffectService(TwoImageRepo repo) {
+        this(repo, new TileScheduler());
     }
 
-    public EffectService(TwoImageRepo repo) {
+    public EffectService(TwoImageRepo repo, TileScheduler scheduler) {
         this.repo = repo;
+        this.effects = new RasterEffects(scheduler);
     }
 
-    public Image getLensFlare(LensFlareCoords coords) throws IOException {
-        getContrastEdit(-16);
-        BufferedImage sourceImage = repo.getResultImage();
-
-        // base scale is calculated for a 600x600 image. We need to scale based on min(width, height) of the source image
-        int min = min(sourceImage.getHeight(), sourceImage.getWidth());
-        double scale = (double)min / 600;
-
-        BufferedImage rainbow = getScaledSourceImage("lens/Lens_Rainbow.png", scale);
-        BufferedImage sun = getScaledSourceImage("lens/Lens_Sun.png", scale);
-        BufferedImage greenCircle1 = getScaledSourceImage("lens/Lens_GreenCircle.png", scale);
-        BufferedImage greenCircle2 = getScaledSourceImage("lens/Lens_GreenCircle2.png", scale);
-        BufferedImage greenCircle3 = getScaledSourceImage("lens/Lens_GreenCircle3.png", scale);
-        BufferedImage purpleCircle = getScaledSourceImage("lens/Lens_PurpleCircle.png", scale);
-        BufferedImage specular = getScaledSourceImage("lens/Lens_Specular.png", scale);
-
-        BufferedImage resultImage = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics g = resultImage.getGraphics();
-        g.drawImage(sourceImage, 0, 0, null);
-
-        Point sunPosition = getLensEffectPosition(coords, 0, sun);
-        g.drawImage(sun, sunPosition.x, sunPosition.y, null);
-
-        Point greenCircle1Pos = getLensEffectPosition(coords, 1.9, greenCircle1);
-        g.drawImage(greenCircle1, greenCircle1Pos.x, greenCircle1Pos.y, null);
-
-        Point specularPos = getLensEffectPosition(coords, 1.25, specular);
-        g.drawImage(specular, specularPos.x, specularPos.y, null);
-
-        Point greenCircle2Pos = getLensEffectPosition(coords, 1.35, greenCircle2);
-        g.drawImage(greenCircle2, greenCircle2Pos.x, greenCircle2Pos.y, null);
-
-        Point greenCirlce3Pos = getLensEffectPosition(coords, 0.75, greenCircle3);
-        g.drawImage(greenCircle3, greenCirlce3Pos.x, greenCirlce3Pos.y, null);
-
-        Point purpleCirclePos = getLensEffectPosition(coords, 0.4, purpleCircle);
-        g.drawImage(purpleCircle, purpleCirclePos.x, purpleCirclePos.y, null);
-
-        Point rainbowPos = getLensEffectPosition(coords, 2, rainbow);
-        g.drawImage(rainbow, rainbowPos.x, rainbowPos.y, null);
-
-        repo.setResultImage(resultImage);
-
-        return SwingFXUtils.toFXImage(resultImage, null);
+    public RasterEffects getRasterEffects() {
+        return effects;
     }
 
-    public Image getGreyscale () {
-        return applySinglePixelEffect(pixelInfo -> {
-            Color initialColor = pixelInfo.getInitialColor();
-            int val = initialColor.getRed() + initialColor.getGreen() + initialColor.getBlue();
-            val /= 3;
-            return new Color(val, val, val);
-        });
-    }
-    public Image getContrastEdit (int contrast) {
-        if(contrast < -160)
-            contrast = -160;
-        if(contrast > 160)
-            contrast = 160;
-
-        double factor = (double)(259 * (contrast + 255)) / (255 * (259 - contrast));
-        Function<Integer, Integer> contrastConversion = (initialColorVal -> {
-            int res = (int) (factor * (initialColorVal - 128) + 128);
-            return clamp(res);
-        });
-
-        return applySinglePixelEffect(pixelInfo -> {
-            Color initialColor = pixelInfo.getInitialColor();
-            Integer red = contrastConversion.apply(initialColor.getRed());
-            Integer green = contrastConversion.apply(initialColor.getGreen());
-            Integer blue = contrastConversion.apply(initialColor.getBlue());
-
-            return new Color(red, green, blue);
-        });
+    public BufferedImage getLensFlare(LensFlareCoords coords) throws IOException {
+        return getLensFlare(coords, FlarePreset.DEFAULT);
     }
 
-    public Image getGammaCorrection(double gamma) {
-        Function<Integer, Integer> formula = val -> {
-            double aux = Math.pow(((double) val / 255), gamma) * 255;
-            return (int)aux;
-        };
-
-        return applySinglePixelEffect(pixelInfo -> {
-            Color initialColor = pixelInfo.getInitialColor();
-            int red = formula.apply(initialColor.getRed());
-            int green = formula.apply(initialColor.getGreen());
-            int blue = formula.apply(initialColor.getBlue());
-
-            return new Color(red, green, blue);
-        });
+    public BufferedImage getLensFlare(LensFlareCoords coords, FlarePreset preset) throws IOException {
+        return apply("effect.LENS_FLARE", source -> effects.lensFlare(source, coords, preset));
     }
 
-    public Image getSubtraction(BufferedImage otherImage) {
-        return applySinglePixelEffect(pixelInfo -> {
-            Color initialColor = pixelInfo.getInitialColor();
-            Color otherColor = new Color(otherImage.getRGB(pixelInfo.getX(), pixelInfo.getY()));
-            return new Color(
-                    clamp(initialColor.getRed() - otherColor.getRed()),
-                    clamp(initialColor.getGreen() - otherColor.getGreen()),
-                    clamp(initialColor.getBlue() - otherColor.getBlue())
-            );
-        });
+    public BufferedImage getGreyscale () {
+        return apply("effect.GREYSCALE", effects::greyscale);
     }
-
-    public Image scale(double ratio) {
-        BufferedImage originalImage = repo.getSourceImage();
-        BufferedImage resultImage = scaleAux(originalImage, ratio);
-
-        repo.setResultImage(resultImage);
-
-        return SwingFXUtils.toFXImage(resultImage, null);
+    public BufferedImage getContrastEdit (int contrast) {
+        return applyChannelLut("effect.CONTRAST", ChannelLut.contrast(contrast));
     }
 
-    private BufferedImage scalePositively(BufferedImage originalImage, double ratio) {
-
-        int resX = (int)(originalImage.getWidth()*ratio)+1;
-        int resY = (int)(originalImage.getHeight()*ratio)+1;
-
-        BufferedImage resultImage = new BufferedImage(resX, resY, originalImage.getType());
-
-        double overflowX = 0, overflowY = 0;
-        int nrToInterpolateY = 0;
-        int x, y=0;
-
-        for(int originalY = 0; originalY<originalImage.getHeight(); ++originalY) {
-            x=0;
-            for(int originalX = 0; originalX<originalImage.getWidth(); ++originalX) {
-                overflowX += ratio;
-
-                int nrToInterpolate = (int)(overflowX-1);
-                overflowX -= nrToInterpolate;
-
-                int leftRgb = 0;
-                if(originalX != 0) {
-                    leftRgb = originalImage.getRGB(originalX-1, originalY);
-                }
-
-                Color leftColor = new Color(leftRgb);
-                Color rightColor = new Color(originalImage.getRGB(originalX, originalY));
-
-                for(int i=0; i<nrToInterpolate; ++i) {
-                    double lw = ((double)i+1)/(nrToInterpolate+1); // left weight
-                    double rw = 1-lw; // right weight
-
-                    int red = (int)(leftColor.getRed() * lw + rightColor.getRed() * rw);
-                    int green = (int) (leftColor.getGreen() * lw + rightColor.getGreen() * rw);
-                    int blue = (int) (leftColor.getBlue() * lw + rightColor.getBlue() * rw);
-
-                    resultImage.setRGB(x, y, new Color(red, green, blue).getRGB());
-                    ++x;
-                }
-                resultImage.setRGB(x, y, originalImage.getRGB(originalX, originalY));
-                ++x;
-                --overflowX;
-            }
-
-            for(int i=0; i<nrToInterpolateY; ++i) {
-                double tw = ((double)i+1)/(nrToInterpolateY+1); // top weight
-                double bw = 1-tw; // bottom weight
-
-                for(int j=0; j<resX; ++j) {
-                    int topRgb = 0;
-                    if(y != 0) {
-                        topRgb = resultImage.getRGB(j, y-nrToInterpolateY-1);
-                    }
-                    Color topColor = new Color(topRgb);
-                    Color bottomColor = new Color(resultImage.getRGB(j, y));
-
-                    int red = (int)(topColor.getRed() * tw + bottomColor.getRed() * bw);
-                    int green = (int)(topColor.getGreen() * tw + bottomColor.getGreen() * bw);
-                    int blue = (int)(topColor.getBlue() * tw + bottomColor.getBlue() * bw);
-
-                    resultImage.setRGB(j, y - nrToInterpolateY + i, new Color(red, green, blue).getRGB());
-                }
-            }
-
-            overflowY += ratio;
-            nrToInterpolateY = (int)overflowY-1;
-            overflowY -= nrToInterpolateY + 1;
-            y += nrToInterpolateY + 1;
-        }
-
-        return resultImage;
+    public BufferedImage getGammaCorrection(double gamma) {
+        return applyChannelLut("effect.GAMMA_CORRECTION", ChannelLut.gamma(gamma));
     }
 
-    private BufferedImage scaleNegatively(BufferedImage originalImage, double ratio) {
-        double invRatio = 1/ratio;
-
-        int resX = (int)(originalImage.getWidth()*ratio)-1;
-        int resY = (int)(originalImage.getHeight()*ratio)-1;
-
-        BufferedImage resultImage = new BufferedImage(resX, resY, originalImage.getType());
-
-        for(int x=0; x<resX; ++x) {
-            for(int y=0; y<resY; ++y) {
-                int originalX = (int)(x * invRatio);
-                int originalY = (int)(y * invRatio);
-                resultImage.setRGB(x, y, originalImage.getRGB(originalX, originalY));
-            }
-        }
-
-        return resultImage;
+    /**
+     * Contrast followed by gamma correction, done in a single pass with a combined lookup table
+     */
+    public BufferedImage getToneAdjustment(int contrast, double gamma) {
+        return applyChannelLut("effect.TONE_ADJUSTMENT", ChannelLut.contrast(contrast).andThen(ChannelLut.gamma(gamma)));
     }
 
-    private BufferedImage scaleAux(BufferedImage source, double ratio) {
-        if(ratio < 1)
-            return scaleNegatively(source, ratio);
-        return scalePositively(source, ratio);
+    /**
+     * Maps the red, green and blue channel of every pixel through the table
+     */
+    public BufferedImage applyChannelLut(ChannelLut lut) {
+        return applyChannelLut("effect.CHANNEL_LUT", lut);
     }
 
-    public Image getMedianFilter(int windowSize) throws Exception {
-        if(windowSize > 10)
-            throw new Exception("Window size is too big");
-        if(windowSize < 1)
-            throw new Exception("Window size is too small");
-
-        int removeMargin = 15;
-
-        BufferedImage image = repo.getSourceImage();
-
-        for(int x=0; x<image.getWidth(); ++x) {
-            for(int y=0; y<image.getHeight(); ++y) {
-                int leftBorder = max(0, x - windowSize);
-                int rightBorder = min(image.getWidth()-1, x + windowSize);
-
-                int topBorder = max(0, y - windowSize);
-                int bottomBorder = min(image.getHeight() - 1, y + windowSize);
-
-                List<PixelValues> values = new ArrayList<>();
-
-                for(int i=leftBorder; i<=rightBorder; ++i) {
-                    for(int j=topBorder; j<=bottomBorder; ++j) {
-                        if(x == i && y == j)
-                            continue;
-                        Color color = new Color(image.getRGB(i, j));
-                        values.add(new PixelValues(color.getRed(), color.getGreen(), color.getBlue()));
-                    }
-                }
-
-                values.sort(Comparator.comparingInt(PixelValues::getTotal));
-
-                int minTotal = values.get(0).getTotal();
-                int maxTotal = values.get(values.size()-1).getTotal();
-
-                values.removeIf(v -> {
-                    int total = v.getTotal();
-                    return total - removeMargin < minTotal || total + removeMargin > maxTotal;
-                });
-
-                values.sort(Comparator.comparingInt(PixelValues::getTotal));
-
-                if(values.size() >= 2) {
-                    PixelValues val = values.get(values.size() / 2);
-                    image.setRGB(x, y, new Color(val.red, val.green, val.blue).getRGB());
-                }
-            }
-        }
-
-        repo.setResultImage(image);
-
-        return SwingFXUtils.toFXImage(image, null);
+    public BufferedImage getSubtraction(BufferedImage otherImage) {
+        return apply("effect.SUBTRACTION", source -> effects.subtraction(source, otherImage));
     }
 
-    public Image contour(int cutoff) {
-        BufferedImage resultImage = getCountourAux(cutoff);
-
-        repo.setResultImage(resultImage);
-        return SwingFXUtils.toFXImage(resultImage, null);
+    /**
+     * Big reductions (like thumbnails) start from the cached pyramid of the source image, which is much faster and
+     * looks the same; other ratios are resampled directly.
+     */
+    public BufferedImage scale(double ratio) {
+        return apply("effect.SCALE", source -> effects.scale(source, ratio));
     }
 
-    private BufferedImage getCountourAux(int cutoff) {
-        BufferedImage image = repo.getSourceImage();
-
-        // a pixel is part of a margin if there is at least one neighbour pixel that is brighter by *cutoff*
-
-        cutoff *= 3; // so we dont't have to use divisions later
-
-        BufferedImage resultImage = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-
-        for(int x = 1; x<image.getWidth()-1; ++x) { // we skip the border for simplicity
-            for(int y=1; y<image.getHeight()-1; ++y) {
-                Color c = new Color(image.getRGB(x, y));
-                int val = c.getRed() + c.getBlue() + c.getGreen();
-
-                boolean isMargin = false;
-
-                Color c1 = new Color(image.getRGB(x+1, y));
-                int val1 = c1.getRed() + c1.getGreen() + c1.getBlue();
-                if(val1 - val > cutoff)
-                    isMargin = true;
-
-                Color c2 = new Color(image.getRGB(x-1, y));
-                int val2 = c2.getRed() + c2.getGreen() + c2.getBlue();
-                if(val2 - val > cutoff)
-                    isMargin = true;
-
-                Color c3 = new Color(image.getRGB(x, y+1));
-                int val3 = c3.getRed() + c3.getGreen() + c3.getBlue();
-                if(val3 - val > cutoff)
-                    isMargin = true;
-
-                Color c4 = new Color(image.getRGB(x, y-1));
-                int val4 = c4.getRed() + c4.getGreen() + c4.getBlue();
-                if(val4 - val > cutoff)
-                    isMargin = true;
-
-                if(isMargin)
-                    resultImage.setRGB(x, y, Color.black.getRGB());
-                else
-                    resultImage.setRGB(x, y, Color.white.getRGB());
-            }
-        }
-
-        for(int x=0; x<image.getWidth(); ++x)
-        {
-            resultImage.setRGB(x, 0, Color.white.getRGB());
-            resultImage.setRGB(x, image.getHeight()-1, Color.white.getRGB());
-        }
-        for(int y=0; y<image.getHeight(); ++y)
-        {
-            resultImage.setRGB(0, y, Color.white.getRGB());
-            resultImage.setRGB(image.getWidth()-1, y, Color.white.getRGB());
-        }
-
-        return resultImage;
+    public BufferedImage scale(double ratio, Resampler.Filter filter) {
+        return apply("effect.SCALE", source -> effects.scale(source, ratio, filter));
     }
 
-    public Image skeleton (int cutoff) {
-        BufferedImage image = repo.getSourceImage();
-
-        BufferedImage resultImage = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-
-        BufferedImage contourImg = getCountourAux(cutoff);
-
-        for(int x =1; x<image.getWidth()-1; ++x) {
-            for(int y=1; y<image.getHeight()-1; ++y) {
-                int min = getMinDist(contourImg, x, y);
-
-
-                if(min <= 0) { // we are outside of the object
-                    resultImage.setRGB(x, y, Color.white.getRGB());
-                }
-                else {
-                    int min1 = getMinDist(contourImg, x+1, y);
-                    int min2 = getMinDist(contourImg, x-1, y);
-                    int min3 = getMinDist(contourImg, x, y+1);
-                    int min4 = getMinDist(contourImg, x, y-1);
-
-                    int min5 = getMinDist(contourImg, x+1, y+1);
-                    int min6 = getMinDist(contourImg, x+1, y-1);
-                    int min7 = getMinDist(contourImg, x-1, y-1);
-                    int min8 = getMinDist(contourImg, x-1, y+1);
-
-                    if(min >= min1 && min >= min2 && min >= min3 && min >= min4 && min >= min5 && min >= min6 && min >= min7 && min >= min8)
-                    {
-                        resultImage.setRGB(x, y, Color.black.getRGB());
-                    }
-                    else {
-                        resultImage.setRGB(x, y, Color.white.getRGB());
-                    }
-                }
-            }
-        }
-
-        for(int x=0; x<image.getWidth(); ++x)
-        {
-            resultImage.setRGB(x, 0, Color.white.getRGB());
-            resultImage.setRGB(x, image.getHeight()-1, Color.white.getRGB());
-        }
-        for(int y=0; y<image.getHeight(); ++y)
-        {
-            resultImage.setRGB(0, y, Color.white.getRGB());
-            resultImage.setRGB(image.getWidth()-1, y, Color.white.getRGB());
-        }
-
-        repo.setResultImage(resultImage);
-        return SwingFXUtils.toFXImage(resultImage, null);
+    public BufferedImage getMedianFilter(int windowSize) throws Exception {
+        return apply("effect.MEDIAN_FILTER", source -> effects.medianFilter(source, windowSize));
     }
 
-
-    private int getMinDist(BufferedImage contourImg, int x, int y) {
-        int dist1 = skeletonDist(contourImg, x, y, 1, 0);
-        int dist2 = skeletonDist(contourImg, x, y, -1, 0);
-        int dist3 = skeletonDist(contourImg, x, y, 0, 1);
-        int dist4 = skeletonDist(contourImg, x, y, 0, -1);
-
-        int dist5 = skeletonDist(contourImg, x, y, 1, 1);
-        int dist6 = skeletonDist(contourImg, x, y, 1, -1);
-        int dist7 = skeletonDist(contourImg, x, y, -1, -1);
-        int dist8 = skeletonDist(contourImg, x, y, -1, 1);
-
-
-        List<Integer> distances = Arrays.asList(dist1, dist2, dist3, dist4, dist5, dist6, dist7, dist8);
-        Integer min = distances.stream().min(Integer::compareTo).get();
-        return min;
+    public BufferedImage contour(int cutoff) {
+        return apply("effect.CONTOUR", source -> effects.contour(source, cutoff));
     }
 
     /**
-     * Finds the distance in the given direction (dx, dy)
-     * If no object is found in that direction, returns -1
-     * Otherwise, returns the distance
+     * The skeleton with the RAY_8 metric, the same as the old 8 direction ray marching skeleton
      */
-    private int skeletonDist(BufferedImage image, int x, int y, int dx, int dy) {
-        int dist = 0;
-        boolean found = false;
-        while (x > 0 && y > 0 && x < image.getWidth() && y < image.getHeight()) {
-            Color c = new Color(image.getRGB(x, y));
-            if(c.getRed() == 0) // we hit an object
-            {
-                found = true;
-                break;
-            }
-            x += dx;
-            y += dy;
-            ++dist;
-        }
-
-        if(!found)
-            return -1;
-        return dist;
+    public BufferedImage skeleton (int cutoff) {
+        return skeleton(cutoff, SkeletonEngine.Metric.RAY_8);
     }
-    final int BLACK = Color.black.getRGB();
-
-
-    public Image thinning() {
-        // pentru fiecare pixel:
-        // daca are cel putin 2 vecini:
-        // vezi daca exsta vreo pereche de vecini care depinde de pixel ca sa creeze un drum
 
-        BufferedImage image = repo.getSourceImage();
-
-        for(int x=0; x<image.getWidth(); ++x)
-        {
-            image.setRGB(x, 0, Color.white.getRGB());
-            image.setRGB(x, image.getHeight()-1, Color.white.getRGB());
-        }
-        for(int y=0; y<image.getHeight(); ++y)
-        {
-            image.setRGB(0, y, Color.white.getRGB());
-            image.setRGB(image.getWidth()-1, y, Color.white.getRGB());
-        }
-
-        boolean[][] wasDeleted = new boolean[image.getWidth()][image.getHeight()];
-        for(int i=0; i<image.getWidth(); ++i) {
-            for (int j=0; j<image.getHeight(); ++j) {
-                wasDeleted[i][j] = false;
-            }
-        }
-
-        for(int x=1; x<image.getWidth()-1; ++x) {
-            for(int y=1; y<image.getHeight()-1;++y) {
-                int nrOfNeighbors = getNrOfNeighbors(image, x, y);
-                if(wasDeleted[x][y-1])
-                    ++nrOfNeighbors;
-                if(nrOfNeighbors >= 2) {
-                    if(checkThinningContidions(image, x, y))
-                    {
-                        image.setRGB(x, y, Color.white.getRGB());
-                        wasDeleted[x][y]=true;
-                    }
-                }
-            }
-        }
+    /**
+     * @param metric RAY_8 gives the same result as the old 8 direction ray marching skeleton; EUCLIDEAN is opt-in
+     */
+    public BufferedImage skeleton (int cutoff, SkeletonEngine.Metric metric) {
+        return apply("effect.SKELETON", source -> effects.skeleton(source, cutoff, metric));
+    }
 
-        for(int x=image.getWidth()-2; x>0; --x) {
-            for(int y=image.getHeight()-2; y>0;--y) {
-                if(getNrOfNeighbors(image, x, y) >= 2) {
-                    if(checkThinningContidions(image, x, y))
-                        image.setRGB(x, y, Color.white.getRGB());
-                }
-            }
-        }
+    public BufferedImage thinning() {
+        return thinning(ThinningEngine.Algorithm.ZHANG_SUEN);
+    }
 
-        repo.setResultImage(image);
-        return SwingFXUtils.toFXImage(image, null);
+    public BufferedImage thinning(ThinningEngine.Algorithm algorithm) {
+        return apply("effect.THINNING", source -> effects.thinning(source, algorithm));
     }
 
     /**
-     * @return true if it can be eliminated
+     * Runs all the steps of the pipeline on the source image, keeping only the final result
      */
-    private boolean checkThinningContidions(BufferedImage image, int x, int y) {
-        if(image.getRGB(x-1, y) == BLACK && image.getRGB(x+1, y) == BLACK && image.getRGB(x, y-1) != BLACK && image.getRGB(x, y+1) != BLACK)
-            return false;
-        if(image.getRGB(x, y-1) == BLACK && image.getRGB(x, y+1) == BLACK && image.getRGB(x-1, y) != BLACK && image.getRGB(x+1, y) != BLACK)
-            return false;
-
-        if(image.getRGB(x, y-1) == BLACK && image.getRGB(x+1, y) == BLACK && image.getRGB(x+1,y-1) != BLACK)
-            return false;
-        if(image.getRGB(x, y-1) == BLACK && image.getRGB(x-1, y) == BLACK && image.getRGB(x-1,y-1) != BLACK)
-            return false;
-        if(image.getRGB(x, y+1) == BLACK && image.getRGB(x+1, y) == BLACK && image.getRGB(x+1,y+1) != BLACK)
-            return false;
-        if(image.getRGB(x, y+1) == BLACK && image.getRGB(x-1, y) == BLACK && image.getRGB(x-1,y+1) != BLACK)
-            return false;
-
-        return true;
-    }
-
-    private int getNrOfNeighbors(BufferedImage img, int x, int y) {
-        int nr = 0;
-
-        if(img.getRGB(x-1, y) == BLACK)
-            ++nr;
-        if(img.getRGB(x+1, y) == BLACK)
-            ++nr;
-        if(img.getRGB(x, y+1) == BLACK)
-            ++nr;
-        if(img.getRGB(x, y-1) == BLACK)
-            ++nr;
-        return nr;
+    public BufferedImage applyPipeline(EffectPipeline pipeline) throws IOException {
+        return apply("effect.PIPELINE", pipeline::run);
     }
 
     /**
-     * Applies the given effect to each pixel of the image individually. Saves the new image in the repo and returns it.
-     * @return the image after the effect was applied.
+     * Runs the steps on the memory-mapped source of the repo (see {@link TwoImageRepo#loadMappedImage}) and saves the
+     * result, also memory-mapped, in the repo
+     * @param directory where the result raster is created
      */
-    private Image applySinglePixelEffect(SinglePixelEffect effect) {
-        BufferedImage image = repo.getSourceImage();
-
-        for(int x=0; x<image.getWidth(); ++x) {
-            for(int y=0; y<image.getHeight(); ++y) {
-                Color c = new Color(image.getRGB(x, y));
-                image.setRGB(x, y, effect.apply(new PixelInfoDto(c, x, y)).getRGB());
-            }
+    @SuppressWarnings("try")
+    public MappedRaster applyMapped(List<EffectStep> steps, File directory) throws IOException {
+        MappedRaster source = repo.getMappedSource();
+        MappedRaster result;
+        try (Metrics.Sample ignored = metrics.start("effect.MAPPED", (long) source.getWidth() * source.getHeight())) {
+            result = new MappedEffects(effects).apply(source, steps, directory);
         }
-
-        repo.setResultImage(image);
-
-        return SwingFXUtils.toFXImage(image, null);
+        repo.setMappedResult(result);
+        return result;
     }
 
     /**
-     * Ensures that the given value is within the interval [0, 255]
-     * @param val value to clamp
-     * @return a valid color value
+     * Runs the steps on the source image in the background. The result is saved in the repo before the future
+     * completes, unless the task was cancelled.
+     * @param listener gets the progress from the worker threads; may be null
+     * @param timeoutMillis the task is cancelled if it takes longer than this; 0 means no deadline
+     * @param imageLoader loads the other image of SUBTRACTION steps
      */
-    private int clamp(int val) {
-        if(val > 255)
-            return 255;
-        if(val < 0)
-            return 0;
+    @SuppressWarnings("try")
+    public EffectTask submit(List<EffectStep> steps, ProgressMonitor.Listener listener, long timeoutMillis,
+                             Function<String, BufferedImage> imageLoader) {
+        ProgressMonitor monitor = new ProgressMonitor(listener, timeoutMillis);
+        RasterEffects monitored = effects.withScheduler(effects.getScheduler().withMonitor(monitor));
+        BufferedImage source = getSource();
+
+        CompletableFuture<BufferedImage> future = CompletableFuture.supplyAsync(() -> {
+            try (Metrics.Sample ignored = metrics.start("effect.TASK", source)) {
+                BufferedImage result = EffectPipeline.compile(steps, monitored, imageLoader).run(source, monitor);
+                // a cancel that came after the last checkpoint must not let the result replace a newer one
+                monitor.complete(() -> setResult(result));
+                return result;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, asyncExecutor);
 
-        return val;
+        return new EffectTask(future, monitor);
     }
 
     /**
-     * Converts a given Image into a BufferedImage
-     *
-     * @param img The Image to be converted
-     * @return The converted BufferedImage
+     * Applies the effect to the source image and saves the result, recording the time in the metrics
      */
-    private static BufferedImage toBufferedImage(java.awt.Image img)
-    {
-        if (img instanceof BufferedImage)
-        {
-            return (BufferedImage) img;
+    @SuppressWarnings("try")
+    private <E extends Exception> BufferedImage apply(String operation, Effect<E> effect) throws E {
+        BufferedImage source = getSource();
+        try (Metrics.Sample ignored = metrics.start(operation, source)) {
+            return setResult(effect.apply(source));
         }
-
-        // Create a buffered image with transparency
-        BufferedImage bimage = new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-
-        // Draw the image on to the buffered image
-        Graphics2D bGr = bimage.createGraphics();
-        bGr.drawImage(img, 0, 0, null);
-        bGr.dispose();
-
-        // Return the buffered image
-        return bimage;
     }
 
-    private BufferedImage getScaledSourceImage(String path, double scale) throws IOException {
-        BufferedImage aux = ImageIO.read(new File(path));
-        BufferedImage res = toBufferedImage(aux.getScaledInstance((int)(aux.getWidth() * scale), (int)(aux.getHeight() * scale), 0));
-        return res;
+    private BufferedImage applyChannelLut(String operation, ChannelLut lut) {
+        return apply(operation, source -> effects.channelLut(source, lut));
     }
 
     /**
-     *
-     * @param coords
-     * @param dist - [0,1] - how close it is to the sun: 0 = inside the sun, 1 = in the center, 2 = symmetric to the sun
-     * @return
+     * @return the source image of the repo, only for reading
      */
-    private Point getLensEffectPosition(LensFlareCoords coords, double dist, BufferedImage img) {
-        int diffX = coords.center.x - coords.sun.x;
-        int diffY  = coords.center.y - coords.sun.y;
-
-        int x = (int) (coords.sun.x + diffX * dist);
-        int y = (int) (coords.sun.y + diffY * dist);
+    private BufferedImage getSource() {
+        return repo.getSourceImage();
+    }
 
-        Point res = new Point();
-        res.x = x - img.getWidth()/2;
-        res.y = y - img.getHeight()/2;
+    /**
+     * Saves the new image in the repo and returns it.
+     * @return the image after the effect was applied.
+     */
+    private BufferedImage setResult(BufferedImage resultImage) {
+        repo.setResultImage(resultImage);
 
-        return res;
+        return resultImage;
     }
 }
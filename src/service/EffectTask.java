@@ -0,0 +1,42 @@
+package service;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handle of an effect running in the background. Cancelling it completes the future right away; the worker stops at
+ * the next band of rows it would have processed.
+ */
+public class EffectTask {
+    private final CompletableFuture<BufferedImage> future;
+    private final ProgressMonitor monitor;
+
+    EffectTask(CompletableFuture<BufferedImage> future, ProgressMonitor monitor) {
+        this.future = future;
+        this.monitor = monitor;
+    }
+
+    /**
+     * @return completes with the result, or exceptionally with a CancellationException if the task was cancelled or
+     * its deadline passed
+     */
+    public CompletableFuture<BufferedImage> getFuture() {
+        return future;
+    }
+
+    public void cancel() {
+        monitor.cancel();
+        future.cancel(false);
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * @return between 0 and 1
+     */
+    public double getProgress() {
+        return monitor.getProgress();
+    }
+}
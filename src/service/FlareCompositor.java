@@ -0,0 +1,222 @@
+package service;
+
+import domain.BlendMode;
+import domain.FlareElement;
+import domain.FlarePreset;
+import domain.LensFlareCoords;
+import util.RasterUtils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws lens flares directly on the int pixels of the image, blending each sprite only inside its bounding box.
+ * <p>
+ * The last frame is kept, so when only the coordinates change (the user moves the sun), the new frame starts as a
+ * copy of it and only the rectangles covered by the old and the new sprites are restored from the base image and
+ * drawn again. The frame is drawn outside the lock: a render on another base doesn't wait for the others, it just
+ * draws the whole frame. Callers that alternate between bases (e.g. a proxy and the full image) should each have
+ * their own compositor, or they keep throwing away each other's frame.
+ */
+public class FlareCompositor {
+    /**
+     * A sprite at its position in the image, clipped to the image
+     */
+    private static class Placement {
+        final int[] pixels;
+        final int spriteWidth;
+        final int x, y;
+        final Rectangle bounds;
+        final BlendMode mode;
+
+        Placement(BufferedImage sprite, int x, int y, Rectangle bounds, BlendMode mode) {
+            this.pixels = RasterUtils.getPixels(sprite);
+            this.spriteWidth = sprite.getWidth();
+            this.x = x;
+            this.y = y;
+            this.bounds = bounds;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * A rendered frame, with the rectangles its sprites cover
+     */
+    private static class Frame {
+        final BufferedImage base;
+        final int[] pixels;
+        final List<Rectangle> bounds;
+
+        Frame(BufferedImage base, int[] pixels, List<Rectangle> bounds) {
+            this.base = base;
+            this.pixels = pixels;
+            this.bounds = bounds;
+        }
+    }
+
+    private final FlareSpriteCache sprites;
+
+    private Frame last;
+
+    public FlareCompositor(FlareSpriteCache sprites) {
+        this.sprites = sprites;
+    }
+
+    /**
+     * @return a compositor with no frame yet, sharing the sprites with this one
+     */
+    public FlareCompositor withSameSprites() {
+        return new FlareCompositor(sprites);
+    }
+
+    /**
+     * @param base the image under the flare; it is only read
+     * @return a new TYPE_INT_ARGB image with the flare. It must not be modified, the next frame is copied from it.
+     */
+    public BufferedImage render(BufferedImage base, FlarePreset preset, LensFlareCoords coords) throws IOException {
+        int width = base.getWidth();
+        int height = base.getHeight();
+        int[] basePixels = RasterUtils.getPixels(base);
+        int opaque = RasterUtils.opaqueMask(base);
+
+        Frame previous;
+        synchronized (this) {
+            previous = last != null && last.base == base ? last : null;
+        }
+
+        int[] frame;
+        List<Rectangle> dirty = new ArrayList<>();
+        if(previous == null) {
+            frame = new int[width * height];
+            dirty.add(new Rectangle(0, 0, width, height));
+        }
+        else {
+            frame = previous.pixels.clone();
+            dirty.addAll(previous.bounds);
+        }
+
+        // base scale is calculated for a 600x600 image. We need to scale based on min(width, height) of the source image
+        double scale = (double) Math.min(width, height) / 600;
+        Rectangle imageBounds = new Rectangle(0, 0, width, height);
+
+        List<Placement> placements = new ArrayList<>();
+        List<Rectangle> bounds = new ArrayList<>();
+        for(FlareElement element : preset.getElements()) {
+            BufferedImage sprite = sprites.getScaledSprite(element.getSprite(), scale * element.getScale());
+            int diffX = coords.center.x - coords.sun.x;
+            int diffY = coords.center.y - coords.sun.y;
+            int x = (int) (coords.sun.x + diffX * element.getDistance()) - sprite.getWidth() / 2;
+            int y = (int) (coords.sun.y + diffY * element.getDistance()) - sprite.getHeight() / 2;
+
+            Rectangle rect = new Rectangle(x, y, sprite.getWidth(), sprite.getHeight()).intersection(imageBounds);
+            if(rect.isEmpty())
+                continue;
+
+            placements.add(new Placement(sprite, x, y, rect, element.getBlendMode()));
+            bounds.add(rect);
+        }
+        dirty.addAll(bounds);
+
+        // overlapping dirty rectangles are simply redrawn twice, each redraw starts again from the base
+        for(Rectangle rect : dirty) {
+            for(int row=rect.y; row<rect.y+rect.height; ++row) {
+                int i = row * width + rect.x;
+                for(int col=0; col<rect.width; ++col, ++i)
+                    frame[i] = basePixels[i] | opaque;
+            }
+
+            for(Placement placement : placements) {
+                Rectangle clip = placement.bounds.intersection(rect);
+                if(!clip.isEmpty())
+                    blend(frame, placement, clip, width);
+            }
+        }
+
+        synchronized (this) {
+            last = new Frame(base, frame, bounds);
+        }
+        // the frame is never written again, the next one starts from a copy
+        return RasterUtils.wrapArgb(frame, width, height);
+    }
+
+    private static void blend(int[] frame, Placement placement, Rectangle clip, int width) {
+        for(int row=clip.y; row<clip.y+clip.height; ++row) {
+            int i = row * width + clip.x;
+            int s = (row - placement.y) * placement.spriteWidth + clip.x - placement.x;
+            for(int col=0; col<clip.width; ++col, ++i, ++s) {
+                int src = placement.pixels[s];
+                if((src >>> 24) != 0)
+                    frame[i] = blendPixel(frame[i], src, placement.mode);
+            }
+        }
+    }
+
+    /**
+     * Blends two non-premultiplied ARGB pixels. The math is done on premultiplied values, so the transparent parts
+     * of the sprites don't darken the image.
+     */
+    static int blendPixel(int dst, int src, BlendMode mode) {
+        int sa = src >>> 24;
+        if((dst >>> 24) == 255 && mode == BlendMode.NORMAL) {
+            // the usual case, an opaque image: red and blue, then green, are blended together inside an int
+            int rb = (src & 0x00FF00FF) * sa + (dst & 0x00FF00FF) * (255 - sa);
+            int g = (src & 0x0000FF00) * sa + (dst & 0x0000FF00) * (255 - sa);
+            return 0xFF000000 | div255(rb) | (div255(g >>> 8) << 8);
+        }
+
+        int da = dst >>> 24;
+        int outA = 0;
+        int res = 0;
+
+        for(int shift=16; shift>=0; shift-=8) {
+            int s = mul((src >> shift) & 0xFF, sa);
+            int d = mul((dst >> shift) & 0xFF, da);
+            int o;
+            switch (mode) {
+                case ADD:
+                    o = Math.min(255, s + d);
+                    outA = Math.min(255, sa + da);
+                    break;
+                case SCREEN:
+                    o = s + d - mul(s, d);
+                    outA = sa + da - mul(sa, da);
+                    break;
+                default:
+                    o = s + mul(d, 255 - sa);
+                    outA = sa + mul(da, 255 - sa);
+                    break;
+            }
+            res |= o << shift;
+        }
+
+        if(outA == 0)
+            return 0;
+        if(outA == 255)
+            return 0xFF000000 | res;
+
+        // back to straight alpha
+        int r = Math.min(255, (((res >> 16) & 0xFF) * 255 + outA / 2) / outA);
+        int g = Math.min(255, (((res >> 8) & 0xFF) * 255 + outA / 2) / outA);
+        int b = Math.min(255, ((res & 0xFF) * 255 + outA / 2) / outA);
+        return (outA << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Divides the two 16 bit lanes (bits 0-15 and 16-31) of the value by 255, rounded
+     */
+    private static int div255(int lanes) {
+        int t = lanes + 0x00800080;
+        return ((t + ((t >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+    }
+
+    /**
+     * a * b / 255, rounded
+     */
+    private static int mul(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,86 @@
+package service;
+
+import util.RasterUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the lens flare sprites in memory, so rendering a flare doesn't read and decode the files again.
+ * The scaled versions are kept too, in a bounded LRU, since the same image is usually rendered many times in a row.
+ * The returned images are shared and must not be modified.
+ */
+public class FlareSpriteCache {
+    private static final int MAX_SCALED_SPRITES = 32;
+
+    private final String directory;
+    private final TileScheduler scheduler;
+    private final Map<String, BufferedImage> sprites = new HashMap<>();
+    private final Map<String, BufferedImage> scaledSprites = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+            return size() > MAX_SCALED_SPRITES;
+        }
+    };
+
+    /**
+     * @param directory where the sprites are, looked up first on the classpath and then on disk
+     */
+    public FlareSpriteCache(String directory, TileScheduler scheduler) {
+        this.directory = directory;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param name file name of the sprite, e.g. Lens_Sun.png
+     */
+    public synchronized BufferedImage getSprite(String name) throws IOException {
+        BufferedImage sprite = sprites.get(name);
+        if(sprite == null) {
+            sprite = RasterUtils.toIntRaster(read(name));
+            sprites.put(name, sprite);
+        }
+
+        return sprite;
+    }
+
+    /**
+     * @return the sprite resized by the given factor (at least 1x1)
+     */
+    public synchronized BufferedImage getScaledSprite(String name, double scale) throws IOException {
+        String key = name + "@" + scale;
+        BufferedImage scaled = scaledSprites.get(key);
+        if(scaled == null) {
+            BufferedImage sprite = getSprite(name);
+            int width = Math.max(1, (int) (sprite.getWidth() * scale));
+            int height = Math.max(1, (int) (sprite.getHeight() * scale));
+            scaled = new Resampler(Resampler.Filter.BICUBIC, scheduler).resize(sprite, width, height);
+            scaledSprites.put(key, scaled);
+        }
+
+        return scaled;
+    }
+
+    private BufferedImage read(String name) throws IOException {
+        BufferedImage image;
+        InputStream in = FlareSpriteCache.class.getResourceAsStream("/" + directory + "/" + name);
+        if(in != null) {
+            try (InputStream stream = in) {
+                image = ImageIO.read(stream);
+            }
+        }
+        else {
+            image = ImageIO.read(new File(directory, name));
+        }
+
+        if(image == null)
+            throw new IOException("Unsupported image format: " + name);
+        return image;
+    }
+}
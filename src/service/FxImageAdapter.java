@@ -0,0 +1,63 @@
+package service;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import util.Metrics;
+import util.RasterUtils;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Shows BufferedImages in JavaFX. The same WritableImage is reused as long as the size doesn't change, and the
+ * pixels are written in the premultiplied format JavaFX uses internally, so it doesn't have to convert them again.
+ * Use one adapter per ImageView, because the previous image is overwritten. Must be called on the FX thread if the
+ * image is displayed.
+ */
+public class FxImageAdapter {
+    private WritableImage fxImage;
+    private int[] buffer;
+
+    @SuppressWarnings("try")
+    public Image toFXImage(BufferedImage image) {
+        try (Metrics.Sample ignored = Metrics.global().start("fx.convert", image)) {
+            return convert(image);
+        }
+    }
+
+    private Image convert(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if(fxImage == null || (int) fxImage.getWidth() != width || (int) fxImage.getHeight() != height) {
+            fxImage = new WritableImage(width, height);
+            buffer = new int[width * height];
+        }
+
+        int[] pixels = RasterUtils.getPixels(image);
+        if(image.getColorModel().hasAlpha()) {
+            for(int i=0; i<pixels.length; i++)
+                buffer[i] = premultiply(pixels[i]);
+        }
+        else {
+            int mask = RasterUtils.opaqueMask(image);
+            for(int i=0; i<pixels.length; i++)
+                buffer[i] = pixels[i] | mask;
+        }
+
+        fxImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), buffer, 0, width);
+        return fxImage;
+    }
+
+    private static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if(a == 255)
+            return argb;
+        if(a == 0)
+            return 0;
+
+        int r = ((argb >> 16) & 0xFF) * a;
+        int g = ((argb >> 8) & 0xFF) * a;
+        int b = (argb & 0xFF) * a;
+        return a << 24 | ((r + 127) / 255) << 16 | ((g + 127) / 255) << 8 | (b + 127) / 255;
+    }
+}
@@ -0,0 +1,136 @@
+package service;
+
+import util.RasterUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Successive halvings of an image (a mipmap), used to make small thumbnails quickly: the image is halved with a 2x2
+ * box filter until it is less than twice the wanted size, and only that level goes through the resampler.
+ * <p>
+ * Pyramids are cached per source image and their levels are only built when needed, so several thumbnails of the
+ * same image reuse them. Cached images must not be modified afterwards (images shared through the repo never are).
+ */
+public class ImagePyramid {
+    private static final Map<BufferedImage, ImagePyramid> cache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static class Level {
+        final int[] pixels;
+        final int width;
+        final int height;
+
+        Level(int[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final List<Level> levels = new ArrayList<>();
+    private final int type;
+    private final int opaque;
+
+    private ImagePyramid(BufferedImage image) {
+        // only the pixels are kept, a reference to the image would keep it in the cache forever
+        levels.add(new Level(RasterUtils.getPixels(image), image.getWidth(), image.getHeight()));
+        this.type = RasterUtils.isIntBacked(image) ? image.getType()
+                : image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        this.opaque = RasterUtils.opaqueMask(image);
+    }
+
+    /**
+     * @return the cached pyramid of the image, creating it if needed
+     */
+    public static ImagePyramid of(BufferedImage image) {
+        return cache.computeIfAbsent(image, ImagePyramid::new);
+    }
+
+    /**
+     * Resizes the image to the given size, starting from the smallest level that is at least twice as big
+     */
+    public BufferedImage downscale(int width, int height, Resampler.Filter filter, TileScheduler scheduler) {
+        Level level = levelFor(width, height, scheduler);
+
+        int[] pixels = new Resampler(filter, scheduler).resize(level.pixels, level.width, level.height, opaque, width, height);
+        BufferedImage res = new BufferedImage(width, height, type);
+        int[] resPixels = RasterUtils.getPixels(res);
+        for(int i=0; i<pixels.length; ++i)
+            resPixels[i] = pixels[i] & ~opaque;
+
+        return res;
+    }
+
+    private synchronized Level levelFor(int width, int height, TileScheduler scheduler) {
+        int i = 0;
+        while(true) {
+            Level level = levels.get(i);
+            if(level.width / 2 < width * 2 || level.height / 2 < height * 2)
+                return level;
+
+            if(i + 1 == levels.size())
+                levels.add(halve(level, scheduler));
+            ++i;
+        }
+    }
+
+    /**
+     * Averages every 2x2 block of pixels. Opaque pixels have their channels averaged two at a time inside an int (red
+     * and blue, then alpha and green), with rounding. Pixels with alpha are averaged premultiplied, like the resampler
+     * does, so transparent pixels don't bleed their color into the neighbours. An odd last row / column is averaged
+     * with itself.
+     */
+    private Level halve(Level level, TileScheduler scheduler) {
+        int width = level.width;
+        int height = level.height;
+        int newWidth = (width + 1) / 2;
+        int newHeight = (height + 1) / 2;
+        int[] src = level.pixels;
+        int[] dst = new int[newWidth * newHeight];
+        int opaque = this.opaque;
+
+        scheduler.forEachBand(newWidth, newHeight, (fromY, toY) -> {
+            for(int y=fromY; y<toY; ++y) {
+                int row0 = 2 * y * width;
+                int row1 = Math.min(2 * y + 1, height - 1) * width;
+                for(int x=0; x<newWidth; ++x) {
+                    int x0 = 2 * x;
+                    int x1 = Math.min(x0 + 1, width - 1);
+                    int p0 = src[row0 + x0] | opaque, p1 = src[row0 + x1] | opaque;
+                    int p2 = src[row1 + x0] | opaque, p3 = src[row1 + x1] | opaque;
+
+                    if(opaque != 0) {
+                        int rb = (p0 & 0x00FF00FF) + (p1 & 0x00FF00FF) + (p2 & 0x00FF00FF) + (p3 & 0x00FF00FF) + 0x00020002;
+                        int ag = ((p0 >>> 8) & 0x00FF00FF) + ((p1 >>> 8) & 0x00FF00FF) + ((p2 >>> 8) & 0x00FF00FF) + ((p3 >>> 8) & 0x00FF00FF) + 0x00020002;
+                        dst[y * newWidth + x] = ((rb >>> 2) & 0x00FF00FF) | (((ag >>> 2) & 0x00FF00FF) << 8);
+                    } else {
+                        dst[y * newWidth + x] = averagePremultiplied(p0, p1, p2, p3);
+                    }
+                }
+            }
+        });
+
+        return new Level(dst, newWidth, newHeight);
+    }
+
+    /**
+     * @return the average of the four pixels, each color weighted by its alpha, with rounding
+     */
+    private static int averagePremultiplied(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+        int alpha = a0 + a1 + a2 + a3;
+        if(alpha == 0)
+            return 0;
+
+        int res = (alpha + 2) >> 2 << 24;
+        for(int shift=0; shift<24; shift+=8) {
+            int sum = ((p0 >> shift) & 0xFF) * a0 + ((p1 >> shift) & 0xFF) * a1 + ((p2 >> shift) & 0xFF) * a2 + ((p3 >> shift) & 0xFF) * a3;
+            res |= (sum + alpha / 2) / alpha << shift;
+        }
+        return res;
+    }
+}
@@ -1,37 +1,85 @@
 package service;
 
-import javafx.embed.swing.SwingFXUtils;
+import domain.SaveOptions;
 import javafx.scene.image.Image;
 import repo.TwoImageRepo;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 
 public class ImageService {
     private final TwoImageRepo repo;
+    private final FxImageAdapter sourceAdapter = new FxImageAdapter();
 
     public ImageService(TwoImageRepo repo) {
         this.repo = repo;
     }
 
     public Image getSourceImage() {
-        return SwingFXUtils.toFXImage(repo.getSourceImage(), null);
+        return sourceAdapter.toFXImage(repo.getSourceImage());
     }
 
-    public void saveImage() {
-        repo.save();
+    /**
+     * @return the source image itself, only for reading
+     */
+    public BufferedImage getSourceRaster() {
+        return repo.getSourceImage();
+    }
+
+    /**
+     * Stores an image computed outside of EffectService (e.g. by the preview renderer) as the result
+     */
+    public void setResultRaster(BufferedImage image) {
+        repo.setResultImage(image);
+    }
+
+    /**
+     * Saves the result over the source file, in the background
+     */
+    public CompletableFuture<File> saveImage() {
+        return repo.save();
+    }
+
+    public CompletableFuture<File> saveImage(File target, SaveOptions options) {
+        return repo.save(target, options);
+    }
+
+    /**
+     * Frees the history and the mapped images, deleting their temporary files
+     */
+    public void close() throws IOException {
+        repo.close();
     }
 
     public Image loadImage(String path) {
-        return SwingFXUtils.toFXImage(repo.loadImage(path), null);
+        return sourceAdapter.toFXImage(repo.loadImage(path));
     }
 
     public BufferedImage loadSeparateImage(String path) {
         return repo.loadSeparateImage(path);
     }
 
+    /**
+     * @return the previous source image, or null if there is nothing to undo
+     */
+    public Image undo() {
+        BufferedImage image = repo.undo();
+        return image == null ? null : sourceAdapter.toFXImage(image);
+    }
+
+    /**
+     * @return the source image that was undone, or null if there is nothing to redo
+     */
+    public Image redo() {
+        BufferedImage image = repo.redo();
+        return image == null ? null : sourceAdapter.toFXImage(image);
+    }
+
     public Image useResultAsSource() {
         repo.setSourceToResult();
-        return SwingFXUtils.toFXImage(repo.getSourceImage(), null);
+        return sourceAdapter.toFXImage(repo.getSourceImage());
     }
 }
@@ -0,0 +1,128 @@
+package service;
+
+import domain.EffectStep;
+import domain.PixelKernel;
+import repo.MappedRaster;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * Runs effects on memory-mapped rasters. Per-pixel effects work on the mapped tiles directly, in parallel over rows
+ * of tiles; neighbourhood effects are applied strip by strip with halo rows, like {@link StripProcessor}.
+ * Only the tiles being processed have to be paged in.
+ */
+public class MappedEffects {
+    private final RasterEffects effects;
+    private final int stripHeight;
+
+    public MappedEffects(RasterEffects effects) {
+        this(effects, StripProcessor.DEFAULT_STRIP_HEIGHT);
+    }
+
+    public MappedEffects(RasterEffects effects, int stripHeight) {
+        this.effects = effects;
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * Applies the steps to the source, writing a new raster in the directory
+     * @throws IllegalArgumentException if one of the steps can't be applied strip by strip
+     */
+    public MappedRaster apply(MappedRaster source, List<EffectStep> steps, File directory) throws IOException {
+        int halo = StripProcessor.haloRows(steps);
+        MappedRaster result = MappedRaster.createTemp(directory, source.getWidth(), source.getHeight(), source.hasAlpha());
+        try {
+            PixelKernel kernel = halo == 0 ? toKernel(steps) : null;
+            if(kernel != null)
+                applyPixelKernel(source, result, kernel);
+            else
+                applyByStrips(source, result, steps, halo);
+        } catch (IOException | RuntimeException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Applies the kernel to every pixel of the source, writing into result (of the same size)
+     */
+    public void applyPixelKernel(MappedRaster source, MappedRaster result, PixelKernel kernel) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        // the bands are rows of tiles, each of them TILE_SIZE rows of pixels
+        effects.getScheduler().forEachBand(width * MappedRaster.TILE_SIZE, source.getTilesY(), (fromTileY, toTileY) -> {
+            for(int tileY=fromTileY; tileY<toTileY; ++tileY) {
+                int rows = Math.min(MappedRaster.TILE_SIZE, height - tileY * MappedRaster.TILE_SIZE);
+                for(int tileX=0; tileX<source.getTilesX(); ++tileX) {
+                    IntBuffer src = source.getTile(tileX, tileY);
+                    IntBuffer dst = result.getTile(tileX, tileY);
+                    int columns = Math.min(MappedRaster.TILE_SIZE, width - tileX * MappedRaster.TILE_SIZE);
+
+                    for(int y=0; y<rows; ++y) {
+                        int i = y * MappedRaster.TILE_SIZE;
+                        int globalY = tileY * MappedRaster.TILE_SIZE + y;
+                        for(int x=0; x<columns; ++x, ++i)
+                            dst.put(i, kernel.apply(src.get(i), tileX * MappedRaster.TILE_SIZE + x, globalY));
+                    }
+                }
+            }
+        });
+    }
+
+    private void applyByStrips(MappedRaster source, MappedRaster result, List<EffectStep> steps, int halo) throws IOException {
+        EffectPipeline pipeline = EffectPipeline.compile(steps, effects, path -> {
+            throw new IllegalArgumentException("Not supported on mapped rasters");
+        });
+
+        int height = source.getHeight();
+        for(int fromY=0; fromY<height; fromY+=stripHeight) {
+            effects.getScheduler().checkpoint();
+            int toY = Math.min(height, fromY + stripHeight);
+            int readFrom = Math.max(0, fromY - halo);
+            int readTo = Math.min(height, toY + halo);
+
+            BufferedImage processed = pipeline.run(source.getRowsImage(readFrom, readTo - readFrom));
+            result.setRowsImage(fromY, processed.getSubimage(0, fromY - readFrom, processed.getWidth(), toY - fromY));
+        }
+    }
+
+    /**
+     * @return the steps as a single kernel (consecutive lookup tables are combined), or null if one of them is not a
+     * per-pixel effect
+     */
+    private static PixelKernel toKernel(List<EffectStep> steps) {
+        PixelKernel res = null;
+        ChannelLut lut = null;
+        for(EffectStep step : steps) {
+            switch (step.getType()) {
+                case CONTRAST:
+                    lut = lut == null ? ChannelLut.contrast(step.getIntValue()) : lut.andThen(ChannelLut.contrast(step.getIntValue()));
+                    break;
+                case GAMMA_CORRECTION:
+                    lut = lut == null ? ChannelLut.gamma(step.getValue()) : lut.andThen(ChannelLut.gamma(step.getValue()));
+                    break;
+                case GREYSCALE:
+                    res = chain(chain(res, lut == null ? null : lut.asKernel()), RasterEffects.GREYSCALE);
+                    lut = null;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return chain(res, lut == null ? null : lut.asKernel());
+    }
+
+    private static PixelKernel chain(PixelKernel first, PixelKernel second) {
+        if(first == null)
+            return second;
+        if(second == null)
+            return first;
+        return (argb, x, y) -> second.apply(first.apply(argb, x, y), x, y);
+    }
+}
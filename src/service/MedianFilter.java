@@ -0,0 +1,248 @@
+package service;
+
+import domain.Argb;
+
+import java.util.Arrays;
+
+/**
+ * Median filter on the brightness (red + green + blue) of the pixels, using a sliding window histogram (Huang).
+ * For every pixel, the neighbours in the window are taken without the pixel itself, the darkest and brightest ones
+ * (within removeMargin of the minimum / maximum) are dropped and the pixel is replaced by the median of the rest.
+ * If fewer than 2 neighbours remain, the pixel is left unchanged.
+ * <p>
+ * Moving the window one pixel to the right only removes one column and adds another, so a pixel costs O(windowSize)
+ * instead of sorting the whole window. Several neighbours can have the same brightness as the median; the result is
+ * the one the old implementation picked, which sorted the neighbours stably in column-major order (column by column,
+ * top to bottom in each).
+ */
+public class MedianFilter {
+    private static final int BINS = 766; // 3 * 255 + 1 possible totals
+    private static final int COARSE_SHIFT = 4;
+    private static final int COARSE_BINS = (BINS >> COARSE_SHIFT) + 1;
+
+    private final int windowSize;
+    private final int removeMargin;
+
+    /**
+     * @param windowSize how many pixels the window extends in each direction
+     * @param removeMargin neighbours closer than this to the darkest / brightest value are ignored
+     */
+    public MedianFilter(int windowSize, int removeMargin) {
+        this.windowSize = windowSize;
+        this.removeMargin = removeMargin;
+    }
+
+    /**
+     * Filters source into result. The source is only read, so the bands can be filtered in any order.
+     * @param opaque see {@link util.RasterUtils#opaqueMask}
+     */
+    public void apply(int[] source, int[] result, int width, int height, int opaque, TileScheduler scheduler) {
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            Histogram histogram = new Histogram(source, width);
+            for(int y=fromY; y<toY; ++y)
+                filterRow(source, result, width, height, y, opaque, histogram);
+        });
+    }
+
+    private void filterRow(int[] source, int[] result, int width, int height, int y, int opaque, Histogram histogram) {
+        int topBorder = Math.max(0, y - windowSize);
+        int bottomBorder = Math.min(height - 1, y + windowSize);
+
+        histogram.clear();
+        for(int i=0; i<=Math.min(width-1, windowSize); ++i)
+            addColumn(width, i, topBorder, bottomBorder, histogram);
+
+        for(int x=0; x<width; ++x) {
+            if(x > 0) {
+                if(x - windowSize - 1 >= 0)
+                    removeColumn(source, width, x - windowSize - 1, topBorder, bottomBorder, histogram);
+                if(x + windowSize < width)
+                    addColumn(width, x + windowSize, topBorder, bottomBorder, histogram);
+            }
+            result[y * width + x] = histogram.median(removeMargin, y * width + x, opaque);
+        }
+    }
+
+    private void addColumn(int width, int x, int topBorder, int bottomBorder, Histogram histogram) {
+        for(int j=topBorder; j<=bottomBorder; ++j)
+            histogram.add(j * width + x);
+    }
+
+    /**
+     * Removes the leftmost column of the window
+     */
+    private void removeColumn(int[] source, int width, int x, int topBorder, int bottomBorder, Histogram histogram) {
+        for(int j=topBorder; j<=bottomBorder; ++j)
+            histogram.removeFirst(source[j * width + x]);
+    }
+
+    /**
+     * Counts of the pixels in the window for every brightness, with a coarse level over blocks of 16 values so
+     * searches don't have to walk all 766 bins. Each bin also queues the indices of its pixels in the order they were
+     * added, column-major, which gives the pixel the old implementation chose among several with the median brightness.
+     */
+    private static class Histogram {
+        private static final int INITIAL_QUEUE_SIZE = 16;
+
+        private final int[] source;
+        private final int width;
+        private final int[] count = new int[BINS];
+        private final int[] coarse = new int[COARSE_BINS];
+        // a ring buffer for each bin, of a power of 2 size, holding count[bin] indices from first[bin]
+        private final int[][] queues = new int[BINS][];
+        private final int[] first = new int[BINS];
+        private int size;
+
+        Histogram(int[] source, int width) {
+            this.source = source;
+            this.width = width;
+        }
+
+        void clear() {
+            Arrays.fill(count, 0);
+            Arrays.fill(coarse, 0);
+            Arrays.fill(first, 0);
+            size = 0;
+        }
+
+        /**
+         * Adds the pixel at the index, after the pixels added before
+         */
+        void add(int index) {
+            int total = Argb.total(source[index]);
+            int[] queue = queues[total];
+            if(queue == null || count[total] == queue.length)
+                queue = grow(total);
+            queue[(first[total] + count[total]) & (queue.length - 1)] = index;
+            count(total, 1);
+        }
+
+        /**
+         * Removes the pixel added first among the ones with the brightness of argb
+         */
+        void removeFirst(int argb) {
+            int total = Argb.total(argb);
+            first[total] = (first[total] + 1) & (queues[total].length - 1);
+            count(total, -1);
+        }
+
+        private int[] grow(int total) {
+            int[] queue = queues[total];
+            int[] res = new int[queue == null ? INITIAL_QUEUE_SIZE : queue.length * 2];
+            for(int i=0; i<count[total]; ++i)
+                res[i] = queue[(first[total] + i) & (queue.length - 1)];
+            queues[total] = res;
+            first[total] = 0;
+            return res;
+        }
+
+        private void count(int total, int sign) {
+            count[total] += sign;
+            coarse[total >> COARSE_SHIFT] += sign;
+            size += sign;
+        }
+
+        /**
+         * @return the filtered value for the pixel at the index, or the pixel itself if not enough neighbours remain
+         */
+        int median(int removeMargin, int centerIndex, int opaque) {
+            // the pixel itself is not part of its neighbourhood. It stays in its queue, which is skipped below.
+            int centerTotal = Argb.total(source[centerIndex]);
+            count(centerTotal, -1);
+            int res = neighbourMedian(removeMargin, centerIndex, centerTotal);
+            count(centerTotal, 1);
+            return res < 0 ? source[centerIndex] : (source[res] | 0xFF000000) & ~opaque;
+        }
+
+        /**
+         * @return the index of the median neighbour, or -1 if not enough neighbours remain
+         */
+        private int neighbourMedian(int removeMargin, int centerIndex, int centerTotal) {
+            if(size == 0)
+                return -1;
+
+            // the same interval the old implementation kept after removing the outliers
+            int lo = min() + removeMargin;
+            int hi = max() - removeMargin;
+            if(lo > hi)
+                return -1;
+
+            int below = countUpTo(lo - 1);
+            int kept = countUpTo(hi) - below;
+            if(kept < 2)
+                return -1;
+
+            int rank = below + kept / 2;
+            int total = findRank(rank);
+            int k = rank - countUpTo(total - 1);
+
+            int[] queue = queues[total];
+            int mask = queue.length - 1;
+            int res = queue[(first[total] + k) & mask];
+            // the queue is in column-major order; if the pixel itself comes before the k-th neighbour, take the next
+            if(total == centerTotal && !columnMajorBefore(res, centerIndex))
+                res = queue[(first[total] + k + 1) & mask];
+            return res;
+        }
+
+        private boolean columnMajorBefore(int index, int otherIndex) {
+            int x = index % width, otherX = otherIndex % width;
+            return x < otherX || x == otherX && index < otherIndex;
+        }
+
+        private int min() {
+            int block = 0;
+            while(coarse[block] == 0)
+                ++block;
+            int bin = block << COARSE_SHIFT;
+            while(count[bin] == 0)
+                ++bin;
+            return bin;
+        }
+
+        private int max() {
+            int block = COARSE_BINS - 1;
+            while(coarse[block] == 0)
+                --block;
+            int bin = Math.min(BINS - 1, ((block + 1) << COARSE_SHIFT) - 1);
+            while(count[bin] == 0)
+                --bin;
+            return bin;
+        }
+
+        /**
+         * @return the number of values <= bin
+         */
+        private int countUpTo(int bin) {
+            if(bin < 0)
+                return 0;
+            if(bin >= BINS)
+                return size;
+
+            int res = 0;
+            int block = bin >> COARSE_SHIFT;
+            for(int i=0; i<block; ++i)
+                res += coarse[i];
+            for(int i=block << COARSE_SHIFT; i<=bin; ++i)
+                res += count[i];
+            return res;
+        }
+
+        /**
+         * @return the value at the given position (0 based) if all the values were sorted
+         */
+        private int findRank(int rank) {
+            int block = 0;
+            while(rank >= coarse[block]) {
+                rank -= coarse[block];
+                ++block;
+            }
+            int bin = block << COARSE_SHIFT;
+            while(rank >= count[bin]) {
+                rank -= count[bin];
+                ++bin;
+            }
+            return bin;
+        }
+    }
+}
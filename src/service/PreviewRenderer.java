@@ -0,0 +1,247 @@
+package service;
+
+import domain.EffectStep;
+import domain.EffectType;
+import domain.LensFlareCoords;
+import util.Metrics;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Renders effects in the background while the user is still changing their parameters. Every request is first
+ * rendered on a proxy of the source that is only as big as the screen, which is fast enough to follow the typing.
+ * The full resolution render starts once the requests stop for a while (debounce).
+ * <p>
+ * A newer request supersedes the older ones: their renders that haven't started are dropped and those still running
+ * are cancelled, so the listener only sees results of the latest request, and never a preview after the final result.
+ */
+public class PreviewRenderer {
+    public interface Listener {
+        /**
+         * The effect applied on the proxy. Called from a background thread.
+         */
+        void onPreview(BufferedImage preview);
+
+        /**
+         * The effect applied on the full image. Called from a background thread.
+         */
+        void onResult(BufferedImage result);
+
+        void onError(Exception e);
+
+        /**
+         * Progress of the full resolution render. Called from a background thread.
+         */
+        default void onProgress(double fraction) {
+        }
+    }
+
+    private final Metrics metrics = Metrics.global();
+    private final RasterEffects effects;
+    private final RasterEffects previewEffects;
+    private final RasterEffects finalEffects;
+    private final Function<String, BufferedImage> imageLoader;
+    private final int proxyWidth;
+    private final int proxyHeight;
+    private final long debounceMillis;
+
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(PreviewRenderer::daemon);
+    private final ScheduledExecutorService finalExecutor = Executors.newSingleThreadScheduledExecutor(PreviewRenderer::daemon);
+
+    private long generation;
+    private boolean finalDelivered;
+    private ScheduledFuture<?> pendingFinal;
+    private ProgressMonitor previewMonitor;
+    private ProgressMonitor finalMonitor;
+
+    private BufferedImage proxySource;
+    private BufferedImage proxy;
+
+    /**
+     * @param imageLoader loads the other image of SUBTRACTION steps
+     * @param proxyWidth the proxy fits in proxyWidth x proxyHeight; smaller sources are used as they are
+     * @param debounceMillis how long the requests have to stop before rendering at full resolution
+     */
+    public PreviewRenderer(RasterEffects effects, Function<String, BufferedImage> imageLoader, int proxyWidth, int proxyHeight, long debounceMillis) {
+        this.effects = effects;
+        // the proxy and the full image each keep their last lens flare, so moving the sun only redraws around it
+        this.previewEffects = effects.withOwnFlareState();
+        this.finalEffects = effects.withOwnFlareState();
+        this.imageLoader = imageLoader;
+        this.proxyWidth = proxyWidth;
+        this.proxyHeight = proxyHeight;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Starts rendering the steps on the source, superseding the previous request
+     * @param source only read; must not be modified while the render runs
+     */
+    public void render(BufferedImage source, List<EffectStep> steps, Listener listener) {
+        long gen;
+        synchronized (this) {
+            gen = ++generation;
+            finalDelivered = false;
+            cancelRunning();
+            pendingFinal = finalExecutor.schedule(() -> renderFinal(gen, source, steps, listener), debounceMillis, TimeUnit.MILLISECONDS);
+        }
+
+        previewExecutor.execute(() -> renderPreview(gen, source, steps, listener));
+    }
+
+    /**
+     * Drops the current request; nothing more is delivered for it
+     */
+    public synchronized void cancel() {
+        ++generation;
+        cancelRunning();
+        pendingFinal = null;
+    }
+
+    private void cancelRunning() {
+        if(pendingFinal != null)
+            pendingFinal.cancel(false);
+        if(previewMonitor != null)
+            previewMonitor.cancel();
+        if(finalMonitor != null)
+            finalMonitor.cancel();
+    }
+
+    public void shutdown() {
+        cancel();
+        previewExecutor.shutdownNow();
+        finalExecutor.shutdownNow();
+    }
+
+    private void renderPreview(long gen, BufferedImage source, List<EffectStep> steps, Listener listener) {
+        ProgressMonitor monitor = new ProgressMonitor(null, 0);
+        synchronized (this) {
+            if(gen != generation)
+                return;
+            previewMonitor = monitor;
+        }
+
+        try {
+            BufferedImage proxyImage = getProxy(source);
+            double ratio = (double) proxyImage.getWidth() / source.getWidth();
+            EffectPipeline pipeline = EffectPipeline.compile(forProxy(steps, ratio), monitored(previewEffects, monitor), imageLoader);
+            // recorded apart from the full renders, the proxy being much smaller
+            BufferedImage preview = run(EffectPipeline.operationName(steps) + ".preview", pipeline, proxyImage, monitor);
+
+            synchronized (this) {
+                if(gen == generation && !finalDelivered)
+                    listener.onPreview(preview);
+            }
+        } catch (CancellationException e) {
+            // superseded by a newer request
+        } catch (Exception e) {
+            if(isCurrent(gen))
+                listener.onError(e);
+        }
+    }
+
+    private void renderFinal(long gen, BufferedImage source, List<EffectStep> steps, Listener listener) {
+        ProgressMonitor monitor = new ProgressMonitor(listener::onProgress, 0);
+        synchronized (this) {
+            if(gen != generation)
+                return;
+            finalMonitor = monitor;
+        }
+
+        try {
+            EffectPipeline pipeline = EffectPipeline.compile(steps, monitored(finalEffects, monitor), imageLoader);
+            BufferedImage result = run(EffectPipeline.operationName(steps), pipeline, source, monitor);
+
+            synchronized (this) {
+                if(gen == generation) {
+                    finalDelivered = true;
+                    listener.onResult(result);
+                }
+            }
+        } catch (CancellationException e) {
+            // superseded by a newer request
+        } catch (Exception e) {
+            if(isCurrent(gen))
+                listener.onError(e);
+        }
+    }
+
+    /**
+     * Runs the pipeline, recording its time unless it was cancelled
+     */
+    private BufferedImage run(String operation, EffectPipeline pipeline, BufferedImage image, ProgressMonitor monitor) throws IOException {
+        try (Metrics.Sample sample = metrics.start(operation, image)) {
+            try {
+                return pipeline.run(image, monitor);
+            } catch (CancellationException e) {
+                sample.discard();
+                throw e;
+            }
+        }
+    }
+
+    private synchronized boolean isCurrent(long gen) {
+        return gen == generation;
+    }
+
+    private static RasterEffects monitored(RasterEffects effects, ProgressMonitor monitor) {
+        return effects.withScheduler(effects.getScheduler().withMonitor(monitor));
+    }
+
+    /**
+     * @return the source scaled down to fit the proxy size, made once for each source
+     */
+    private BufferedImage getProxy(BufferedImage source) {
+        synchronized (this) {
+            if(source == proxySource)
+                return proxy;
+        }
+
+        double ratio = Math.min(1, Math.min((double) proxyWidth / source.getWidth(), (double) proxyHeight / source.getHeight()));
+        BufferedImage res = ratio < 1 ? effects.scale(source, ratio) : source;
+
+        synchronized (this) {
+            proxySource = source;
+            proxy = res;
+        }
+        return res;
+    }
+
+    /**
+     * Adapts the parameters given in pixels of the full image to the proxy
+     */
+    private static List<EffectStep> forProxy(List<EffectStep> steps, double ratio) {
+        if(ratio == 1)
+            return steps;
+
+        List<EffectStep> res = new ArrayList<>();
+        for(EffectStep step : steps) {
+            if(step.getType() == EffectType.MEDIAN_FILTER && step.getIntValue() > 1)
+                res.add(new EffectStep(step.getType(), Math.max(1, Math.round(step.getValue() * ratio))));
+            else if(step.getType() == EffectType.LENS_FLARE) {
+                LensFlareCoords coords = LensFlareCoords.parse(step.getArgument());
+                res.add(new EffectStep(step.getType(), step.getValue(), Math.round(coords.center.x * ratio) + "," + Math.round(coords.center.y * ratio)
+                        + "," + Math.round(coords.sun.x * ratio) + "," + Math.round(coords.sun.y * ratio)));
+            }
+            else
+                res.add(step);
+        }
+        return res;
+    }
+
+    private static Thread daemon(Runnable runnable) {
+        Thread thread = new Thread(runnable, "preview-renderer");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,130 @@
+package service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress and cancellation of one effect run. The effects check it between bands of rows (see
+ * {@link TileScheduler#withMonitor}), so a cancelled or late run stops within a few rows instead of finishing the
+ * whole image.
+ */
+public class ProgressMonitor {
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param fraction between 0 and 1, never decreasing. Called from the threads doing the work.
+         */
+        void onProgress(double fraction);
+    }
+
+    /**
+     * Progress is only reported when it grew by at least this much
+     */
+    private static final double REPORT_STEP = 0.01;
+
+    private final Listener listener;
+    private final long deadline;
+    private volatile boolean cancelled;
+    // taken by cancel and complete, so nothing completes after cancel returned
+    private final Object completion = new Object();
+
+    private int stage;
+    private int stageCount = 1;
+    private long rowsDone;
+    private long rowsTotal;
+    private double progress;
+    private double reported;
+
+    /**
+     * @param listener may be null
+     * @param timeoutMillis the run is cancelled after this long; 0 or less means no deadline
+     */
+    public ProgressMonitor(Listener listener, long timeoutMillis) {
+        this.listener = listener;
+        this.deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+    }
+
+    public void cancel() {
+        synchronized (completion) {
+            cancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled || (deadline != 0 && System.nanoTime() - deadline > 0);
+    }
+
+    /**
+     * @throws CancellationException if the run was cancelled or its deadline passed
+     */
+    public void checkpoint() {
+        if(cancelled)
+            throw new CancellationException("Effect cancelled");
+        if(deadline != 0 && System.nanoTime() - deadline > 0)
+            throw new CancellationException("Effect deadline exceeded");
+    }
+
+    /**
+     * Runs the action that publishes the result of the run, unless the run was cancelled. Once {@link #cancel} has
+     * returned, the action is either done or will never run.
+     * @throws CancellationException if the run was cancelled or its deadline passed
+     */
+    public void complete(Runnable action) {
+        synchronized (completion) {
+            checkpoint();
+            action.run();
+        }
+    }
+
+    public synchronized double getProgress() {
+        return progress;
+    }
+
+    /**
+     * Starts the given stage of a run made of several passes over the image
+     */
+    public synchronized void beginStage(int index, int count) {
+        stage = index;
+        stageCount = count;
+        rowsDone = 0;
+        rowsTotal = 0;
+        update((double) index / count);
+    }
+
+    /**
+     * Called when a pass over rows of the image starts
+     */
+    synchronized void addRows(int rows) {
+        rowsTotal += rows;
+    }
+
+    /**
+     * Called after each band of rows
+     */
+    synchronized void rowsDone(int rows) {
+        rowsDone += rows;
+        update((stage + Math.min(1, (double) rowsDone / rowsTotal)) / stageCount);
+    }
+
+    /**
+     * Reports the end of the run
+     */
+    public void done() {
+        update(1);
+    }
+
+    /**
+     * The listener is called while holding the lock, so the values it gets are in order
+     */
+    private synchronized void update(double fraction) {
+        if(fraction <= progress)
+            return;
+        progress = fraction;
+        if(fraction < 1 && fraction - reported < REPORT_STEP)
+            return;
+        reported = fraction;
+
+        if(listener != null)
+            listener.onProgress(fraction);
+    }
+}
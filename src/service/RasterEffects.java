@@ -0,0 +1,369 @@
+package service;
+
+import domain.Argb;
+import domain.FlarePreset;
+import domain.LensFlareCoords;
+import domain.PixelKernel;
+import util.BinaryImage;
+import util.RasterUtils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.lang.Math.max;
+
+/**
+ * The effects, working directly on BufferedImages. The given images are only read; every effect returns a new image.
+ */
+public class RasterEffects {
+    public static final int MAX_MEDIAN_WINDOW = 100;
+    public static final int MEDIAN_REMOVE_MARGIN = 15;
+
+    /**
+     * Contrast applied to the image before drawing a lens flare over it
+     */
+    public static final int LENS_FLARE_CONTRAST = -16;
+
+    public static final PixelKernel GREYSCALE = (argb, x, y) -> {
+        int val = Argb.red(argb) + Argb.green(argb) + Argb.blue(argb);
+        val /= 3;
+        return Argb.rgb(val, val, val);
+    };
+
+    static final int BLACK = Color.black.getRGB();
+    static final int WHITE = Color.white.getRGB();
+
+    /**
+     * The lens flare drawing state: the less contrasted image of the last source, and the compositor with the last
+     * frame
+     */
+    private static class FlareState {
+        final FlareCompositor compositor;
+        BufferedImage source;
+        BufferedImage base;
+
+        FlareState(FlareCompositor compositor) {
+            this.compositor = compositor;
+        }
+    }
+
+    private final TileScheduler scheduler;
+    private final FlareState flare;
+
+    public RasterEffects(TileScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.flare = new FlareState(new FlareCompositor(new FlareSpriteCache("lens", scheduler)));
+    }
+
+    private RasterEffects(TileScheduler scheduler, FlareState flare) {
+        this.scheduler = scheduler;
+        this.flare = flare;
+    }
+
+    /**
+     * @return effects that run on the given scheduler (e.g. one with a monitor attached), sharing the lens flare
+     * sprites and the last flare with these ones
+     */
+    public RasterEffects withScheduler(TileScheduler scheduler) {
+        return new RasterEffects(scheduler, flare);
+    }
+
+    /**
+     * @return effects that share the lens flare sprites with these ones, but keep their own last flare. For a caller
+     * that renders many flares on the same image (the preview, the full resolution render), so other callers
+     * don't replace its last frame.
+     */
+    public RasterEffects withOwnFlareState() {
+        return new RasterEffects(scheduler, new FlareState(flare.compositor.withSameSprites()));
+    }
+
+    public TileScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public BufferedImage greyscale(BufferedImage image) {
+        return applyPixelKernel(image, GREYSCALE);
+    }
+
+    /**
+     * Maps the red, green and blue channel of every pixel through the table
+     */
+    public BufferedImage channelLut(BufferedImage image, ChannelLut lut) {
+        return applyPixelKernel(image, lut.asKernel());
+    }
+
+    public BufferedImage subtraction(BufferedImage image, BufferedImage otherImage) {
+        return applyPixelKernel(image, subtractionKernel(image, otherImage));
+    }
+
+    /**
+     * Subtracts the pixels of the other image from the pixels at the same position, clamping at 0
+     * @param image the image the kernel will be applied to; the other image must be at least as big
+     */
+    public static PixelKernel subtractionKernel(BufferedImage image, BufferedImage otherImage) {
+        if(otherImage.getWidth() < image.getWidth() || otherImage.getHeight() < image.getHeight())
+            throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+
+        return new SubtractionKernel(RasterUtils.getPixels(otherImage), otherImage.getWidth());
+    }
+
+    /**
+     * A class rather than a lambda, so applyPixelKernel can recognise it and subtract whole rows at once
+     */
+    static final class SubtractionKernel implements PixelKernel {
+        final int[] otherPixels;
+        final int otherWidth;
+
+        SubtractionKernel(int[] otherPixels, int otherWidth) {
+            this.otherPixels = otherPixels;
+            this.otherWidth = otherWidth;
+        }
+
+        @Override
+        public int apply(int argb, int x, int y) {
+            int other = otherPixels[y * otherWidth + x];
+            return Argb.rgb(
+                    clamp(Argb.red(argb) - Argb.red(other)),
+                    clamp(Argb.green(argb) - Argb.green(other)),
+                    clamp(Argb.blue(argb) - Argb.blue(other))
+            );
+        }
+    }
+
+    /**
+     * Big reductions (like thumbnails) start from the cached pyramid of the image, which is much faster and
+     * looks the same; other ratios are resampled directly.
+     */
+    public BufferedImage scale(BufferedImage image, double ratio) {
+        if(ratio <= 0 || ratio >= 0.5)
+            return scale(image, ratio, Resampler.Filter.BICUBIC);
+
+        int width = max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = max(1, (int) Math.round(image.getHeight() * ratio));
+        return ImagePyramid.of(image).downscale(width, height, Resampler.Filter.LANCZOS3, scheduler);
+    }
+
+    public BufferedImage scale(BufferedImage image, double ratio, Resampler.Filter filter) {
+        if(ratio <= 0)
+            throw new IllegalArgumentException("Scale ratio must be positive");
+
+        int width = max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = max(1, (int) Math.round(image.getHeight() * ratio));
+        return new Resampler(filter, scheduler).resize(image, width, height);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the window size is not in [1, MAX_MEDIAN_WINDOW]
+     */
+    public BufferedImage medianFilter(BufferedImage sourceImage, int windowSize) {
+        if(windowSize > MAX_MEDIAN_WINDOW)
+            throw new IllegalArgumentException("Window size is too big");
+        if(windowSize < 1)
+            throw new IllegalArgumentException("Window size is too small");
+
+        // every pixel is computed from the unfiltered image, so the result doesn't depend on the order of the bands
+        BufferedImage image = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
+        int[] pixels = RasterUtils.getPixels(image);
+
+        new MedianFilter(windowSize, MEDIAN_REMOVE_MARGIN).apply(RasterUtils.getPixels(sourceImage), pixels, image.getWidth(), image.getHeight(), RasterUtils.opaqueMask(image), scheduler);
+        RasterUtils.setPixels(image, pixels);
+
+        return image;
+    }
+
+    public BufferedImage contour(BufferedImage image, int cutoff) {
+        BinaryImage margins = contourMask(image, cutoff);
+
+        BufferedImage resultImage = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        int[] result = RasterUtils.getPixels(resultImage);
+        int opaque = RasterUtils.opaqueMask(resultImage);
+        scheduler.forEachBand(image.getWidth(), image.getHeight(), (fromY, toY) -> margins.toPixels(result, fromY, toY, BLACK & ~opaque, WHITE & ~opaque));
+        RasterUtils.setPixels(resultImage, result);
+
+        return resultImage;
+    }
+
+    /**
+     * @return the pixels of the contour set: the ones with a neighbour brighter by more than cutoff (per channel, on
+     * average). The border is never part of it.
+     */
+    private BinaryImage contourMask(BufferedImage image, int cutoff) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = RasterUtils.getPixels(image);
+
+        int threshold = cutoff * 3; // so we dont't have to use divisions later
+        BinaryImage res = new BinaryImage(width, height);
+
+        // rows start on a new word, so the bands never write the same word
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            // brightness of the row above, the current row and the one below, so each one is computed once
+            // instead of once for every neighbour
+            int[] above = new int[width];
+            int[] current = new int[width];
+            int[] below = new int[width];
+            if(fromY > 0)
+                ChannelKernels.totals(pixels, (fromY - 1) * width, above, width);
+            ChannelKernels.totals(pixels, fromY * width, current, width);
+
+            for(int y=fromY; y<toY; ++y) {
+                if(y + 1 < height)
+                    ChannelKernels.totals(pixels, (y + 1) * width, below, width);
+
+                if(y > 0 && y < height-1) { // we skip the border for simplicity
+                    long word = 0;
+                    for(int x=1; x<width-1; ++x) {
+                        int val = current[x];
+
+                        boolean isMargin = current[x+1] - val > threshold
+                                || current[x-1] - val > threshold
+                                || below[x] - val > threshold
+                                || above[x] - val > threshold;
+
+                        if(isMargin)
+                            word |= 1L << x;
+                        if((x & 63) == 63 || x == width-2) { // end of a word or of the row
+                            res.setWord(x >>> 6, y, word);
+                            word = 0;
+                        }
+                    }
+                }
+
+                int[] previous = above;
+                above = current;
+                current = below;
+                below = previous;
+            }
+        });
+
+        return res;
+    }
+
+    /**
+     * @param metric RAY_8 gives the same result as the old 8 direction ray marching skeleton
+     */
+    public BufferedImage skeleton(BufferedImage image, int cutoff, SkeletonEngine.Metric metric) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        SkeletonEngine engine = new SkeletonEngine(contourMask(image, cutoff), scheduler);
+        BinaryImage ridges = engine.ridges(engine.distanceField(metric));
+
+        BufferedImage resultImage = new BufferedImage(width, height, image.getType());
+        int[] result = RasterUtils.getPixels(resultImage);
+        int opaque = RasterUtils.opaqueMask(resultImage);
+        scheduler.forEachBand(width, height, (fromY, toY) -> ridges.toPixels(result, fromY, toY, BLACK & ~opaque, WHITE & ~opaque));
+        RasterUtils.setPixels(resultImage, result);
+
+        return resultImage;
+    }
+
+    public BufferedImage thinning(BufferedImage sourceImage) {
+        return thinning(sourceImage, ThinningEngine.Algorithm.ZHANG_SUEN);
+    }
+
+    /**
+     * Thins the black pixels down to lines one pixel wide (see {@link ThinningEngine}). The removed pixels and the
+     * border become white, the other pixels keep their color.
+     */
+    public BufferedImage thinning(BufferedImage sourceImage, ThinningEngine.Algorithm algorithm) {
+        int width = sourceImage.getWidth();
+        int height = sourceImage.getHeight();
+        int[] source = RasterUtils.getPixels(sourceImage);
+        int sourceOpaque = RasterUtils.opaqueMask(sourceImage);
+
+        BinaryImage black = BinaryImage.of(source, width, height, argb -> (argb | sourceOpaque) == BLACK);
+        BinaryImage removed = black.andNot(new ThinningEngine(scheduler).thin(black, algorithm));
+
+        BufferedImage resultImage = new BufferedImage(width, height, sourceImage.getType());
+        int[] result = RasterUtils.getPixels(resultImage);
+        int white = WHITE & ~sourceOpaque;
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            for(int y=fromY; y<toY; ++y) {
+                for(int x=0; x<width; ++x) {
+                    int i = y * width + x;
+                    boolean border = x == 0 || y == 0 || x == width-1 || y == height-1;
+                    result[i] = border || removed.get(x, y) ? white : source[i];
+                }
+            }
+        });
+        RasterUtils.setPixels(resultImage, result);
+
+        return resultImage;
+    }
+
+    /**
+     * Draws a lens flare over a slightly less contrasted version of the image
+     */
+    public BufferedImage lensFlare(BufferedImage sourceImage, LensFlareCoords coords, FlarePreset preset) throws IOException {
+        BufferedImage base;
+        synchronized (flare) {
+            // the less contrasted image only has to be made once for each source
+            if(sourceImage != flare.source) {
+                flare.base = channelLut(sourceImage, ChannelLut.contrast(LENS_FLARE_CONTRAST));
+                flare.source = sourceImage;
+            }
+            base = flare.base;
+        }
+
+        return lensFlareOnBase(base, coords, preset);
+    }
+
+    /**
+     * Draws a lens flare over an image that already had the LENS_FLARE_CONTRAST edit applied
+     */
+    public BufferedImage lensFlareOnBase(BufferedImage base, LensFlareCoords coords, FlarePreset preset) throws IOException {
+        return flare.compositor.render(base, preset, coords);
+    }
+
+    /**
+     * Applies the kernel to the given image, walking the raster row by row. The image is only read, the result is
+     * written into a new image. Greyscale, lookup tables and subtraction use the vectorizable loops of
+     * {@link ChannelKernels} instead of calling the kernel for each pixel.
+     */
+    public BufferedImage applyPixelKernel(BufferedImage sourceImage, PixelKernel kernel) {
+        int width = sourceImage.getWidth();
+        int height = sourceImage.getHeight();
+        int[] source = RasterUtils.getPixels(sourceImage);
+        int sourceOpaque = RasterUtils.opaqueMask(sourceImage);
+
+        BufferedImage image = new BufferedImage(width, height, sourceImage.getType());
+        int[] pixels = RasterUtils.getPixels(image);
+        int opaque = RasterUtils.opaqueMask(image);
+        ChannelKernels.RowKernel rowKernel = ChannelKernels.forKernel(kernel);
+
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            if(rowKernel != null) {
+                for(int y=fromY; y<toY; ++y)
+                    rowKernel.apply(source, pixels, y * width, y, width, opaque);
+                return;
+            }
+
+            int i = fromY * width;
+            for(int y=fromY; y<toY; ++y) {
+                for(int x=0; x<width; ++x, ++i) {
+                    pixels[i] = kernel.apply(source[i] | sourceOpaque, x, y) & ~opaque;
+                }
+            }
+        });
+        RasterUtils.setPixels(image, pixels);
+
+        return image;
+    }
+
+    /**
+     * Ensures that the given value is within the interval [0, 255]
+     * @param val value to clamp
+     * @return a valid color value
+     */
+    private static int clamp(int val) {
+        if(val > 255)
+            return 255;
+        if(val < 0)
+            return 0;
+
+        return val;
+    }
+}
@@ -0,0 +1,241 @@
+package service;
+
+import util.RasterUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Resizes images with a separable filter: rows are resampled to the new width, then columns to the new height. The
+ * rows are resampled in strips, as the output rows need them, so only a few of them are kept at a time.
+ * The weights of each output column / row are computed once and reused for the whole image.
+ * Pixels are blended with premultiplied alpha, so transparent pixels don't bleed their color into the neighbours.
+ */
+public class Resampler {
+    public enum Filter {
+        NEAREST(0.5) {
+            @Override
+            double weight(double x) {
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            }
+        },
+        BILINEAR(1) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                return x < 1 ? 1 - x : 0;
+            }
+        },
+        /**
+         * Catmull-Rom cubic (a = -0.5)
+         */
+        BICUBIC(2) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                if(x < 1)
+                    return (1.5 * x - 2.5) * x * x + 1;
+                if(x < 2)
+                    return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                return 0;
+            }
+        },
+        LANCZOS3(3) {
+            @Override
+            double weight(double x) {
+                if(x == 0)
+                    return 1;
+                if(x <= -3 || x >= 3)
+                    return 0;
+                double px = Math.PI * x;
+                return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+            }
+        };
+
+        /**
+         * The filter is 0 outside [-support, support]
+         */
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        abstract double weight(double x);
+    }
+
+    /**
+     * For each output coordinate, the first input coordinate it uses and the weights of the inputs, which sum to 1
+     */
+    private static class Weights {
+        final int[] start;
+        final int[] count;
+        final float[] weights;
+        final int taps;
+
+        Weights(int[] start, int[] count, float[] weights, int taps) {
+            this.start = start;
+            this.count = count;
+            this.weights = weights;
+            this.taps = taps;
+        }
+    }
+
+    private final Filter filter;
+    private final TileScheduler scheduler;
+
+    public Resampler(Filter filter, TileScheduler scheduler) {
+        this.filter = filter;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return a new image of the given size, of the same type as the original if it is int based
+     */
+    public BufferedImage resize(BufferedImage image, int width, int height) {
+        int type = RasterUtils.isIntBacked(image) ? image.getType()
+                : image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage res = new BufferedImage(width, height, type);
+
+        int[] pixels = resize(RasterUtils.getPixels(image), image.getWidth(), image.getHeight(), RasterUtils.opaqueMask(image), width, height);
+        int[] resPixels = RasterUtils.getPixels(res);
+        int opaque = RasterUtils.opaqueMask(res);
+        for(int i=0; i<pixels.length; ++i)
+            resPixels[i] = pixels[i] & ~opaque;
+        RasterUtils.setPixels(res, resPixels);
+
+        return res;
+    }
+
+    /**
+     * Resizes packed ARGB pixels.
+     * @param opaque see {@link RasterUtils#opaqueMask}
+     */
+    public int[] resize(int[] pixels, int width, int height, int opaque, int newWidth, int newHeight) {
+        if(newWidth < 1 || newHeight < 1)
+            throw new IllegalArgumentException("Image size must be positive: " + newWidth + "x" + newHeight);
+
+        Weights horizontal = weights(width, newWidth);
+        Weights vertical = weights(height, newHeight);
+
+        // each band of output rows resamples the input rows it uses to the new width as it goes, keeping only the last
+        // vertical.taps of them in a ring (premultiplied argb as 4 floats per pixel), instead of all of them
+        int[] res = new int[newWidth * newHeight];
+        scheduler.forEachBand(newWidth, newHeight, (fromY, toY) -> {
+            int taps = vertical.taps;
+            float[] ring = new float[taps * newWidth * 4];
+            int[] ringRows = new int[taps]; // the input row in each slot
+            Arrays.fill(ringRows, -1);
+            int[] offsets = new int[taps];
+
+            for(int y=fromY; y<toY; ++y) {
+                int start = vertical.start[y];
+                int count = vertical.count[y];
+                // the rows of consecutive outputs only move forward, so a row leaves the ring once no output uses it
+                for(int k=0; k<count; ++k) {
+                    int slot = (start + k) % taps;
+                    offsets[k] = slot * newWidth * 4;
+                    if(ringRows[slot] != start + k) {
+                        resampleRow(pixels, (start + k) * width, opaque, horizontal, ring, offsets[k], newWidth);
+                        ringRows[slot] = start + k;
+                    }
+                }
+
+                int w0 = y * taps;
+                for(int x=0; x<newWidth; ++x) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    for(int k=0; k<count; ++k) {
+                        float weight = vertical.weights[w0 + k];
+                        int t = offsets[k] + x * 4;
+                        a += ring[t] * weight;
+                        r += ring[t + 1] * weight;
+                        g += ring[t + 2] * weight;
+                        b += ring[t + 3] * weight;
+                    }
+                    res[y * newWidth + x] = pack(a, r, g, b);
+                }
+            }
+        });
+
+        return res;
+    }
+
+    /**
+     * Resamples one row of pixels to the new width, writing premultiplied argb as 4 floats per pixel
+     */
+    private static void resampleRow(int[] pixels, int row, int opaque, Weights horizontal, float[] dest, int offset, int newWidth) {
+        for(int x=0; x<newWidth; ++x) {
+            float a = 0, r = 0, g = 0, b = 0;
+            int start = horizontal.start[x];
+            int w = x * horizontal.taps;
+            for(int k=0; k<horizontal.count[x]; ++k, ++w) {
+                int p = pixels[row + start + k] | opaque;
+                float weight = horizontal.weights[w];
+                float pa = (p >>> 24) * weight;
+                a += pa;
+                r += ((p >> 16) & 0xFF) * pa;
+                g += ((p >> 8) & 0xFF) * pa;
+                b += (p & 0xFF) * pa;
+            }
+            int t = offset + x * 4;
+            dest[t] = a;
+            dest[t + 1] = r;
+            dest[t + 2] = g;
+            dest[t + 3] = b;
+        }
+    }
+
+    /**
+     * Converts premultiplied float channels (alpha in [0, 255], colors multiplied by it) back to a packed pixel
+     */
+    private static int pack(float a, float r, float g, float b) {
+        int alpha = clamp(Math.round(a));
+        if(alpha == 0)
+            return 0;
+
+        float inv = 1f / a;
+        return (alpha << 24) | (clamp(Math.round(r * inv)) << 16) | (clamp(Math.round(g * inv)) << 8) | clamp(Math.round(b * inv));
+    }
+
+    private static int clamp(int val) {
+        return val < 0 ? 0 : Math.min(val, 255);
+    }
+
+    private Weights weights(int size, int newSize) {
+        double scale = (double) newSize / size;
+        // when shrinking, the filter is stretched so every input pixel contributes (otherwise we'd get aliasing)
+        double stretch = scale < 1 && filter != Filter.NEAREST ? 1 / scale : 1;
+        double support = filter.support * stretch;
+        int taps = filter == Filter.NEAREST ? 1 : (int) Math.ceil(support * 2) + 1;
+
+        int[] start = new int[newSize];
+        int[] count = new int[newSize];
+        float[] weights = new float[newSize * taps];
+
+        for(int i=0; i<newSize; ++i) {
+            double center = (i + 0.5) / scale - 0.5;
+
+            if(filter == Filter.NEAREST) {
+                start[i] = Math.max(0, Math.min(size - 1, (int) Math.floor(center + 0.5)));
+                count[i] = 1;
+                weights[i] = 1;
+                continue;
+            }
+
+            int from = Math.max(0, (int) Math.ceil(center - support));
+            int to = Math.min(size - 1, (int) Math.floor(center + support));
+            to = Math.min(to, from + taps - 1);
+
+            double sum = 0;
+            for(int j=from; j<=to; ++j)
+                sum += filter.weight((j - center) / stretch);
+
+            start[i] = from;
+            count[i] = to - from + 1;
+            for(int j=from; j<=to; ++j)
+                weights[i * taps + j - from] = sum == 0 ? 1f / count[i] : (float) (filter.weight((j - center) / stretch) / sum);
+        }
+
+        return new Weights(start, count, weights, taps);
+    }
+}
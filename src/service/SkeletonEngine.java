@@ -0,0 +1,225 @@
+package service;
+
+import domain.Argb;
+import util.BinaryImage;
+
+import java.util.Arrays;
+
+/**
+ * Computes the skeleton of the objects outlined by a contour image. The distance from every pixel to the contour is
+ * computed once into an int[] field, in linear time, and the skeleton is made of the pixels where that distance
+ * has a local maximum.
+ * <p>
+ * A pixel is inside an object if, looking in each of the 8 directions, it sees a contour pixel before reaching the
+ * border of the image.
+ */
+public class SkeletonEngine {
+    public enum Metric {
+        /**
+         * Exact squared euclidean distance to the nearest contour pixel (Meijster / Felzenszwalb two pass transform).
+         * Gives a different skeleton than the old one, so it has to be asked for.
+         */
+        EUCLIDEAN,
+        /**
+         * Number of steps to the nearest contour pixel along the 8 directions, like the old ray marching skeleton; the
+         * default
+         */
+        RAY_8
+    }
+
+    private static final int OUTSIDE = -1;
+
+    private final BinaryImage contour;
+    private final int width;
+    private final int height;
+    private final TileScheduler scheduler;
+
+    /**
+     * @param contour pixels of the contour image, black (red == 0) marks the contour
+     */
+    public SkeletonEngine(int[] contour, int width, int height, TileScheduler scheduler) {
+        this(BinaryImage.of(contour, width, height, argb -> Argb.red(argb) == 0), scheduler);
+    }
+
+    /**
+     * @param contour the set pixels are the contour
+     */
+    public SkeletonEngine(BinaryImage contour, TileScheduler scheduler) {
+        this.contour = contour;
+        this.width = contour.getWidth();
+        this.height = contour.getHeight();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return for each pixel the distance to the contour: 0 on the contour, OUTSIDE (-1) outside of any object
+     */
+    public int[] distanceField(Metric metric) {
+        int[] field = rayDistanceField();
+        if(metric == Metric.EUCLIDEAN) {
+            int[] euclidean = euclideanDistanceField();
+            for(int i=0; i<field.length; ++i) {
+                if(field[i] > 0)
+                    field[i] = euclidean[i];
+            }
+        }
+
+        return field;
+    }
+
+    /**
+     * Finds the skeleton pixels: inside an object and at least as far from the contour as all 8 neighbours.
+     * The border of the image is never part of the skeleton.
+     * @return the skeleton pixels set
+     */
+    public BinaryImage ridges(int[] field) {
+        BinaryImage res = new BinaryImage(width, height);
+        // rows start on a new word, so the bands never write the same word
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            for(int y=Math.max(1, fromY); y<Math.min(height - 1, toY); ++y) {
+                long word = 0;
+                for(int x=1; x<width-1; ++x) {
+                    int i = y * width + x;
+                    int min = field[i];
+                    boolean isRidge = min > 0
+                            && min >= field[i+1] && min >= field[i-1] && min >= field[i+width] && min >= field[i-width]
+                            && min >= field[i+width+1] && min >= field[i-width+1] && min >= field[i-width-1] && min >= field[i+width-1];
+
+                    if(isRidge)
+                        word |= 1L << x;
+                    if((x & 63) == 63 || x == width-2) { // end of a word or of the row
+                        res.setWord(x >>> 6, y, word);
+                        word = 0;
+                    }
+                }
+            }
+        });
+        return res;
+    }
+
+    /**
+     * The minimum over the 8 directions of the distance to the first contour pixel, or OUTSIDE if in some direction
+     * the border of the image comes first. Each direction is a single sweep that reuses the distance of the next pixel
+     * in that direction, instead of walking the whole ray from every pixel.
+     */
+    private int[] rayDistanceField() {
+        int[] field = new int[width * height];
+        Arrays.fill(field, Integer.MAX_VALUE);
+        int[] dist = new int[width * height];
+
+        for(int dx=-1; dx<=1; ++dx) {
+            for(int dy=-1; dy<=1; ++dy) {
+                if(dx != 0 || dy != 0)
+                    sweep(field, dist, dx, dy);
+            }
+        }
+
+        return field;
+    }
+
+    private void sweep(int[] field, int[] dist, int dx, int dy) {
+        // (x + dx, y + dy) has to be visited before (x, y)
+        int yStep = dy > 0 ? -1 : 1;
+        int xStep = dx > 0 ? -1 : 1;
+        int yStart = dy > 0 ? height - 1 : 0;
+        int xStart = dx > 0 ? width - 1 : 0;
+
+        for(int y=yStart; y>=0 && y<height; y+=yStep) {
+            scheduler.checkpoint();
+            for(int x=xStart; x>=0 && x<width; x+=xStep) {
+                int i = y * width + x;
+                int d;
+                if(x == 0 || y == 0) { // the old ray marching stopped before reaching the first row / column
+                    d = OUTSIDE;
+                }
+                else if(contour.get(x, y)) {
+                    d = 0;
+                }
+                else {
+                    int nx = x + dx;
+                    int ny = y + dy;
+                    int next = nx < width && ny < height ? dist[ny * width + nx] : OUTSIDE;
+                    d = next == OUTSIDE ? OUTSIDE : next + 1;
+                }
+
+                dist[i] = d;
+                if(d < field[i])
+                    field[i] = d;
+            }
+        }
+    }
+
+    /**
+     * Squared euclidean distance to the nearest contour pixel: first the distance along each column, then the lower
+     * envelope of the parabolas (x - q)^2 + g(q)^2 along each row.
+     */
+    private int[] euclideanDistanceField() {
+        int infinity = width + height;
+        int[] columnDist = new int[width * height];
+
+        // the bands are columns here, the scheduler only splits the range
+        scheduler.forEachBand(height, width, (fromX, toX) -> {
+            for(int x=fromX; x<toX; ++x) {
+                int d = infinity;
+                for(int y=0; y<height; ++y) {
+                    d = contour.get(x, y) ? 0 : Math.min(infinity, d + 1);
+                    columnDist[y * width + x] = d;
+                }
+                d = infinity;
+                for(int y=height-1; y>=0; --y) {
+                    d = contour.get(x, y) ? 0 : Math.min(infinity, d + 1);
+                    if(d < columnDist[y * width + x])
+                        columnDist[y * width + x] = d;
+                }
+            }
+        });
+
+        int[] field = new int[width * height];
+        scheduler.forEachBand(width, height, (fromY, toY) -> {
+            int[] s = new int[width]; // parabolas of the lower envelope
+            int[] t = new int[width]; // where each of them starts being the lowest
+            for(int y=fromY; y<toY; ++y) {
+                int row = y * width;
+                int q = 0;
+                s[0] = 0;
+                t[0] = 0;
+                for(int u=1; u<width; ++u) {
+                    while(q >= 0 && f(columnDist, row, t[q], s[q]) > f(columnDist, row, t[q], u))
+                        --q;
+                    if(q < 0) {
+                        q = 0;
+                        s[0] = u;
+                    }
+                    else {
+                        long w = 1 + sep(columnDist, row, s[q], u);
+                        if(w < width) {
+                            ++q;
+                            s[q] = u;
+                            t[q] = (int) w;
+                        }
+                    }
+                }
+                for(int u=width-1; u>=0; --u) {
+                    long d = f(columnDist, row, u, s[q]);
+                    field[row + u] = (int) Math.min(Integer.MAX_VALUE, d);
+                    if(u == t[q])
+                        --q;
+                }
+            }
+        });
+
+        return field;
+    }
+
+    // the squares don't fit in an int for big images, so they are computed as long
+    private static long f(int[] columnDist, int row, int x, int i) {
+        long g = columnDist[row + i];
+        return (long) (x - i) * (x - i) + g * g;
+    }
+
+    private static long sep(int[] columnDist, int row, int i, int u) {
+        long gi = columnDist[row + i];
+        long gu = columnDist[row + u];
+        return Math.floorDiv((long) u * u - (long) i * i + gu * gu - gi * gi, 2L * (u - i));
+    }
+}
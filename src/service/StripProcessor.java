@@ -0,0 +1,316 @@
+package service;
+
+import domain.EffectStep;
+import util.RasterUtils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Applies effects to image files that don't fit in memory, a strip of rows at a time. Each strip is read from the file
+ * together with the rows around it that the effects look at (the halo), processed, and handed to the ImageWriter as
+ * the rows of a lazily computed image. Only a strip and its halo are in memory at once.
+ * <p>
+ * Only effects that look at a bounded neighbourhood can be streamed: contrast, gamma correction, greyscale, median
+ * filter and contour. Notes on the formats: readers that can't seek to a row (PNG, JPEG) decode the file from the
+ * start for every strip, so higher strips mean fewer passes; the PNG, TIFF and BMP writers pull the rows as they
+ * write them, while the JPEG writer asks for the whole image at once.
+ */
+public class StripProcessor {
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+
+    private final RasterEffects effects;
+    private final int stripHeight;
+
+    public StripProcessor(RasterEffects effects, int stripHeight) {
+        if(stripHeight < 1)
+            throw new IllegalArgumentException("Strip height must be at least 1");
+
+        this.effects = effects;
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * @return how many rows above and below a strip the steps need to compute it exactly
+     * @throws IllegalArgumentException if one of the steps can't be applied strip by strip
+     */
+    public static int haloRows(List<EffectStep> steps) {
+        int halo = 0;
+        for(EffectStep step : steps) {
+            switch (step.getType()) {
+                case CONTRAST:
+                case GAMMA_CORRECTION:
+                case GREYSCALE:
+                    break;
+                case MEDIAN_FILTER:
+                    halo += step.getIntValue();
+                    break;
+                case CONTOUR:
+                    halo += 1;
+                    break;
+                default:
+                    throw new IllegalArgumentException(step.getType() + " can't be applied strip by strip");
+            }
+        }
+        return halo;
+    }
+
+    public static boolean isStreamable(List<EffectStep> steps) {
+        try {
+            haloRows(steps);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the input, applies the steps and writes the output, strip by strip
+     * @param format the output format, or null for the format of the input
+     * @return the size of the image
+     * @throws IllegalArgumentException if the steps can't be streamed or there is no reader / writer for the formats
+     */
+    public Dimension process(File input, File output, String format, List<EffectStep> steps) throws IOException {
+        int halo = haloRows(steps);
+        EffectPipeline pipeline = EffectPipeline.compile(steps, effects, path -> {
+            throw new IllegalArgumentException("Not supported when streaming");
+        });
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if(in == null)
+                throw new IOException("Could not open " + input);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if(!readers.hasNext())
+                throw new IllegalArgumentException("Unsupported image format: " + input);
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, false, true);
+                String outFormat = format != null ? format : reader.getFormatName();
+                boolean opaqueOutput = outFormat.equalsIgnoreCase("jpg") || outFormat.equalsIgnoreCase("jpeg");
+                StripImage image = new StripImage(reader, pipeline, halo, opaqueOutput);
+
+                Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(outFormat);
+                if(!writers.hasNext())
+                    throw new IllegalArgumentException("No writer for format " + outFormat);
+                ImageWriter writer = writers.next();
+                try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+                    writer.setOutput(out);
+                    writer.write(null, new IIOImage(image, null, null), writer.getDefaultWriteParam());
+                } finally {
+                    writer.dispose();
+                }
+                return new Dimension(image.getWidth(), image.getHeight());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The processed image, with one tile per strip. Tiles are computed when the writer asks for them; only the last
+     * one is kept, since writers go through the rows in order.
+     */
+    private class StripImage implements RenderedImage {
+        private final ImageReader reader;
+        private final EffectPipeline pipeline;
+        private final int halo;
+        private final int width;
+        private final int height;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+
+        private int cachedTileY = -1;
+        private Raster cachedTile;
+
+        StripImage(ImageReader reader, EffectPipeline pipeline, int halo, boolean opaqueOutput) throws IOException {
+            this.reader = reader;
+            this.pipeline = pipeline;
+            this.halo = halo;
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+
+            // the type of the processed strips decides the color model, so the first one is made right away
+            BufferedImage first = processStrip(0);
+            int type = first.getColorModel().hasAlpha() && !opaqueOutput ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            this.colorModel = new BufferedImage(1, 1, type).getColorModel();
+            this.sampleModel = colorModel.createCompatibleSampleModel(width, Math.min(stripHeight, height));
+            cachedTile = toTile(first, 0);
+            cachedTileY = 0;
+        }
+
+        /**
+         * @return the processed rows of the strip, together with its halo
+         */
+        private BufferedImage processStrip(int tileY) throws IOException {
+            int fromY = tileY * stripHeight;
+            int toY = Math.min(height, fromY + stripHeight);
+            int readFrom = Math.max(0, fromY - halo);
+            int readTo = Math.min(height, toY + halo);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, readFrom, width, readTo - readFrom));
+            BufferedImage strip = RasterUtils.toIntRaster(reader.read(0, param));
+            return pipeline.run(strip);
+        }
+
+        /**
+         * Wraps the rows of the strip without its halo, without copying them
+         */
+        private Raster toTile(BufferedImage processed, int tileY) {
+            int fromY = tileY * stripHeight;
+            int rows = Math.min(height, fromY + stripHeight) - fromY;
+            int readFrom = Math.max(0, fromY - halo);
+
+            int[] pixels = RasterUtils.getPixels(processed);
+            DataBufferInt buffer = new DataBufferInt(pixels, rows * width, (fromY - readFrom) * width);
+            return Raster.createWritableRaster(colorModel.createCompatibleSampleModel(width, rows), buffer, new Point(0, fromY));
+        }
+
+        @Override
+        public synchronized Raster getTile(int tileX, int tileY) {
+            if(tileY != cachedTileY) {
+                try {
+                    cachedTile = toTile(processStrip(tileY), tileY);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                cachedTileY = tileY;
+            }
+            return cachedTile;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster res = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y));
+            return copyData(res);
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if(raster == null)
+                raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), new Point(0, 0));
+
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            if(bounds.isEmpty())
+                return raster;
+
+            for(int tileY=bounds.y / stripHeight; tileY<=(bounds.y + bounds.height - 1) / stripHeight; ++tileY) {
+                Raster tile = getTile(0, tileY);
+                Rectangle part = tile.getBounds().intersection(bounds);
+                raster.setDataElements(part.x, part.y, part.width, part.height, tile.getDataElements(part.x, part.y, part.width, part.height, null));
+            }
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + stripHeight - 1) / stripHeight;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package service;
+
+import util.BinaryImage;
+
+import java.util.Arrays;
+
+/**
+ * Thins the objects of a black and white image down to lines one pixel wide, repeating until nothing changes.
+ * Every iteration has two subiterations that remove pixels from opposite sides of the objects; whether a pixel can be
+ * removed depends only on its 8 neighbours, so it is looked up in a 256 entry table per subiteration.
+ * <p>
+ * A subiteration decides every pixel from the image as it was before it started, so the pixels are checked in
+ * parallel and the result doesn't depend on the order or the number of threads. Only pixels on the border of an
+ * object (with a background pixel above, below, left or right) can ever be removed, so just those are checked: they
+ * are kept in a list, which gets the neighbours of each removed pixel. A pixel leaves the list once both subiterations
+ * kept it, until a neighbour changes. Later iterations only visit the moving border instead of the whole image.
+ */
+public class ThinningEngine {
+    public enum Algorithm {
+        /**
+         * Zhang and Suen, "A fast parallel algorithm for thinning digital patterns" (1984)
+         */
+        ZHANG_SUEN,
+        /**
+         * Guo and Hall, "Parallel thinning with two-subiteration algorithms" (1989); keeps diagonal lines and small
+         * squares that Zhang-Suen erases
+         */
+        GUO_HALL
+    }
+
+    /**
+     * For each algorithm and subiteration, whether a pixel with the given 8-neighbourhood code is removed
+     */
+    private static final boolean[][] ZHANG_SUEN = {zhangSuenTable(0), zhangSuenTable(1)};
+    private static final boolean[][] GUO_HALL = {guoHallTable(0), guoHallTable(1)};
+
+    private final TileScheduler scheduler;
+
+    public ThinningEngine(TileScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param image the set pixels are the objects; it isn't modified
+     * @return the thinned objects. The first and last row and column are never set.
+     */
+    public BinaryImage thin(BinaryImage image, Algorithm algorithm) {
+        boolean[][] tables = algorithm == Algorithm.GUO_HALL ? GUO_HALL : ZHANG_SUEN;
+        int width = image.getWidth();
+
+        BinaryImage res = image.copy();
+        res.clearBorder(); // so every pixel that is checked has 8 neighbours
+
+        BinaryImage interior = res.and(res.shifted(1, 0)).and(res.shifted(-1, 0)).and(res.shifted(0, 1)).and(res.shifted(0, -1));
+        BinaryImage listed = res.andNot(interior);
+        BinaryImage touched = new BinaryImage(width, res.getHeight()); // listed pixels whose neighbours changed
+        int[] active = setPixels(listed);
+        int count = active.length;
+        byte[] kept = new byte[active.length]; // passes in a row the pixel was kept, with the same neighbours
+        boolean[] remove = new boolean[active.length];
+        int[] removed = new int[active.length];
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int pass=0; pass<2; ++pass) {
+                scheduler.checkpoint();
+                findRemovable(res, active, count, tables[pass], remove);
+
+                // remove them, keeping the rest of the list in order. A pixel kept by both subiterations stays
+                // until one of its neighbours is removed, so it leaves the list until then.
+                int listCount = 0;
+                int removedCount = 0;
+                for(int k=0; k<count; ++k) {
+                    int i = active[k];
+                    int x = i % width;
+                    int y = i / width;
+                    if(remove[k]) {
+                        res.set(x, y, false);
+                        listed.set(x, y, false);
+                        removed[removedCount++] = i;
+                        continue;
+                    }
+
+                    int times = 1;
+                    if(touched.get(x, y))
+                        touched.set(x, y, false);
+                    else
+                        times += kept[k];
+                    if(times == 2) {
+                        listed.set(x, y, false);
+                    }
+                    else {
+                        active[listCount] = i;
+                        kept[listCount++] = (byte) times;
+                    }
+                }
+                count = listCount;
+                if(removedCount == 0)
+                    continue;
+                changed = true;
+
+                // the rest of their neighbours have to be checked again
+                for(int k=0; k<removedCount; ++k) {
+                    int x = removed[k] % width;
+                    int y = removed[k] / width;
+                    for(int ny=y-1; ny<=y+1; ++ny) {
+                        for(int nx=x-1; nx<=x+1; ++nx) {
+                            if(!res.get(nx, ny))
+                                continue;
+                            if(listed.get(nx, ny)) {
+                                touched.set(nx, ny, true);
+                                continue;
+                            }
+                            listed.set(nx, ny, true);
+                            if(count == active.length) {
+                                active = Arrays.copyOf(active, Math.max(16, active.length * 2));
+                                kept = Arrays.copyOf(kept, active.length);
+                            }
+                            active[count] = ny * width + nx;
+                            kept[count++] = 0;
+                        }
+                    }
+                }
+                if(remove.length < active.length) {
+                    remove = new boolean[active.length];
+                    removed = new int[active.length];
+                }
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Decides for the first count pixels of the list whether they are removed, from the image as it is now
+     */
+    private void findRemovable(BinaryImage image, int[] active, int count, boolean[] table, boolean[] remove) {
+        int width = image.getWidth();
+        // the bands are ranges of the list here, the scheduler only splits it
+        scheduler.forEachBand(1, count, (from, to) -> {
+            for(int k=from; k<to; ++k) {
+                int i = active[k];
+                remove[k] = table[image.neighbours(i % width, i / width)];
+            }
+        });
+    }
+
+    /**
+     * @return the index (y * width + x) of every set pixel, row by row
+     */
+    private static int[] setPixels(BinaryImage image) {
+        int[] res = new int[(int) image.count()];
+        int count = 0;
+        for(int y=0; y<image.getHeight(); ++y) {
+            for(int wordX=0; wordX<image.getWordsPerRow(); ++wordX) {
+                long word = image.getWord(wordX, y);
+                while(word != 0) {
+                    res[count++] = y * image.getWidth() + (wordX << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the neighbours clockwise from the north: P2 (north), P3 (north-east), ... P9 (north-west), as 0 or 1
+     */
+    private static int[] clockwise(int neighbours) {
+        int[] bits = {BinaryImage.NORTH, BinaryImage.NORTH_EAST, BinaryImage.EAST, BinaryImage.SOUTH_EAST,
+                BinaryImage.SOUTH, BinaryImage.SOUTH_WEST, BinaryImage.WEST, BinaryImage.NORTH_WEST};
+        int[] res = new int[8];
+        for(int i=0; i<8; ++i)
+            res[i] = (neighbours & bits[i]) != 0 ? 1 : 0;
+        return res;
+    }
+
+    private static boolean[] zhangSuenTable(int pass) {
+        boolean[] res = new boolean[256];
+        for(int code=0; code<256; ++code) {
+            int[] p = clockwise(code);
+            int p2 = p[0], p4 = p[2], p6 = p[4], p8 = p[6];
+
+            int neighbours = Integer.bitCount(code);
+            int transitions = 0; // 0 to 1 going around the pixel
+            for(int i=0; i<8; ++i) {
+                if(p[i] == 0 && p[(i + 1) % 8] == 1)
+                    ++transitions;
+            }
+            boolean side = pass == 0
+                    ? p2 * p4 * p6 == 0 && p4 * p6 * p8 == 0 // south-east border and north-west corner
+                    : p2 * p4 * p8 == 0 && p2 * p6 * p8 == 0; // north-west border and south-east corner
+
+            res[code] = neighbours >= 2 && neighbours <= 6 && transitions == 1 && side;
+        }
+        return res;
+    }
+
+    private static boolean[] guoHallTable(int pass) {
+        boolean[] res = new boolean[256];
+        for(int code=0; code<256; ++code) {
+            int[] p = clockwise(code);
+            int p2 = p[0], p3 = p[1], p4 = p[2], p5 = p[3], p6 = p[4], p7 = p[5], p8 = p[6], p9 = p[7];
+
+            // the number of 8-connected objects around the pixel
+            int c = ((1 - p2) & (p3 | p4)) + ((1 - p4) & (p5 | p6)) + ((1 - p6) & (p7 | p8)) + ((1 - p8) & (p9 | p2));
+            int n1 = (p9 | p2) + (p3 | p4) + (p5 | p6) + (p7 | p8);
+            int n2 = (p2 | p3) + (p4 | p5) + (p6 | p7) + (p8 | p9);
+            int n = Math.min(n1, n2);
+            int m = pass == 0 ? (p6 | p7 | (1 - p9)) & p8 : (p2 | p3 | (1 - p5)) & p4;
+
+            res[code] = c == 1 && n >= 2 && n <= 3 && m == 0;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,183 @@
+package service;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits an image into bands of rows and processes them in parallel on a fork-join pool.
+ * Small images are processed on the calling thread, since splitting them costs more than it gains.
+ */
+public class TileScheduler {
+    /**
+     * Work for the rows [fromY, toY) of an image. Bands never overlap, so each task can write its own rows of a shared
+     * output array. Neighbourhood effects read the rows around their band (the halo) from a source nobody writes to.
+     */
+    @FunctionalInterface
+    public interface BandTask {
+        void run(int fromY, int toY);
+    }
+
+    /**
+     * Images with fewer pixels than this are processed serially by default
+     */
+    public static final int DEFAULT_SERIAL_THRESHOLD = 256 * 256;
+
+    /**
+     * More bands than threads, so a thread that finishes early can steal work from the others
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * Bands are at most this high when a monitor is attached, so cancellation is noticed quickly
+     */
+    private static final int MONITORED_BAND_ROWS = 32;
+
+    private final int parallelism;
+    private final int serialThreshold;
+    private final ForkJoinPool pool;
+    private final ProgressMonitor monitor;
+    // the monitor of the run on each thread, for schedulers made with withThreadMonitors
+    private final ThreadLocal<ProgressMonitor> threadMonitors;
+
+    /**
+     * Uses the number of threads from the imagini.parallelism system property, or one per processor
+     */
+    public TileScheduler() {
+        this(Integer.getInteger("imagini.parallelism", Runtime.getRuntime().availableProcessors()), DEFAULT_SERIAL_THRESHOLD);
+    }
+
+    /**
+     * @param parallelism number of threads; 1 means everything runs on the calling thread
+     * @param serialThreshold images with fewer pixels than this are processed on the calling thread
+     */
+    public TileScheduler(int parallelism, int serialThreshold) {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+
+        this.parallelism = parallelism;
+        this.serialThreshold = serialThreshold;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.monitor = null;
+        this.threadMonitors = null;
+    }
+
+    private TileScheduler(TileScheduler other, ProgressMonitor monitor, ThreadLocal<ProgressMonitor> threadMonitors) {
+        this.parallelism = other.parallelism;
+        this.serialThreshold = other.serialThreshold;
+        this.pool = other.pool;
+        this.monitor = monitor;
+        this.threadMonitors = threadMonitors;
+    }
+
+    /**
+     * @return a scheduler using the same threads, that reports the processed rows to the monitor and stops with a
+     * CancellationException between bands once the monitor is cancelled
+     */
+    public TileScheduler withMonitor(ProgressMonitor monitor) {
+        return new TileScheduler(this, monitor, null);
+    }
+
+    /**
+     * @return a scheduler using the same threads, whose monitor is the one set with {@link #setThreadMonitor} on the
+     * thread calling it. Effects made with it can be compiled into a pipeline once and run with a new monitor each
+     * time, even on several threads at once.
+     */
+    public TileScheduler withThreadMonitors() {
+        return new TileScheduler(this, null, new ThreadLocal<>());
+    }
+
+    /**
+     * Attaches the monitor to the runs on the calling thread, until it is set to null
+     * @throws IllegalStateException if the scheduler wasn't made with {@link #withThreadMonitors}
+     */
+    public void setThreadMonitor(ProgressMonitor monitor) {
+        if(threadMonitors == null)
+            throw new IllegalStateException("The scheduler has no thread monitors");
+        if(monitor == null)
+            threadMonitors.remove();
+        else
+            threadMonitors.set(monitor);
+    }
+
+    private ProgressMonitor getMonitor() {
+        return monitor != null || threadMonitors == null ? monitor : threadMonitors.get();
+    }
+
+    /**
+     * For work that doesn't go through forEachBand: throws a CancellationException if the monitor was cancelled
+     */
+    public void checkpoint() {
+        ProgressMonitor monitor = getMonitor();
+        if(monitor != null)
+            monitor.checkpoint();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs the task over all the rows of a width x height image and waits for it to finish.
+     * Exceptions thrown by the task are rethrown on the calling thread.
+     */
+    public void forEachBand(int width, int height, BandTask task) {
+        ProgressMonitor monitor = getMonitor();
+        if(monitor != null) {
+            monitor.checkpoint();
+            monitor.addRows(height);
+        }
+
+        if(pool == null || (long) width * height < serialThreshold || height < 2) {
+            if(monitor == null) {
+                task.run(0, height);
+                return;
+            }
+            for(int y=0; y<height; y+=MONITORED_BAND_ROWS)
+                runBand(task, y, Math.min(height, y + MONITORED_BAND_ROWS), monitor);
+            return;
+        }
+
+        int grain = Math.max(1, height / (parallelism * BANDS_PER_THREAD));
+        if(monitor != null)
+            grain = Math.min(grain, MONITORED_BAND_ROWS);
+        pool.invoke(new BandAction(task, 0, height, grain, monitor));
+    }
+
+    private static void runBand(BandTask task, int fromY, int toY, ProgressMonitor monitor) {
+        if(monitor == null) {
+            task.run(fromY, toY);
+            return;
+        }
+
+        monitor.checkpoint();
+        task.run(fromY, toY);
+        monitor.rowsDone(toY - fromY);
+    }
+
+    private static class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BandTask task;
+        private final int fromY, toY, grain;
+        private final ProgressMonitor monitor;
+
+        BandAction(BandTask task, int fromY, int toY, int grain, ProgressMonitor monitor) {
+            this.task = task;
+            this.fromY = fromY;
+            this.toY = toY;
+            this.grain = grain;
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected void compute() {
+            if(toY - fromY <= grain) {
+                runBand(task, fromY, toY, monitor);
+                return;
+            }
+
+            int mid = (fromY + toY) >>> 1;
+            invokeAll(new BandAction(task, fromY, mid, grain, monitor), new BandAction(task, mid, toY, grain, monitor));
+        }
+    }
+}
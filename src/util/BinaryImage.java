@@ -0,0 +1,261 @@
+package util;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Black and white image packed 64 pixels per long, for the effects that only care whether a pixel is set (contour,
+ * skeleton, thinning). Pixel x of row y is bit (x % 64) of word y * wordsPerRow + x / 64; the bits after the end of a
+ * row are always 0. It takes 32 times less memory than an int raster, and whole words of pixels can be combined at
+ * once: {@link #shifted} moves the image by one pixel, so neighbour tests become ands and ors of shifted copies.
+ */
+public final class BinaryImage {
+    /**
+     * Bits of the 8-neighbourhood code returned by {@link #neighbours}, going counterclockwise from the east
+     */
+    public static final int EAST = 1, NORTH_EAST = 1 << 1, NORTH = 1 << 2, NORTH_WEST = 1 << 3,
+            WEST = 1 << 4, SOUTH_WEST = 1 << 5, SOUTH = 1 << 6, SOUTH_EAST = 1 << 7;
+
+    /**
+     * The neighbourhood code for the 3x3 pixels around a pixel, given as 3 bits (west to east) of the row above, of
+     * its row and of the row below
+     */
+    private static final int[] NEIGHBOURS = neighbourCodes();
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    public BinaryImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+    }
+
+    private BinaryImage(BinaryImage other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.wordsPerRow = other.wordsPerRow;
+        this.words = other.words.clone();
+    }
+
+    /**
+     * @param pixels packed ARGB pixels, row-major
+     * @param isSet which pixels are set
+     */
+    public static BinaryImage of(int[] pixels, int width, int height, IntPredicate isSet) {
+        BinaryImage res = new BinaryImage(width, height);
+        for(int y=0; y<height; ++y) {
+            int row = y * width;
+            int index = y * res.wordsPerRow;
+            for(int x0=0; x0<width; x0+=64) {
+                int end = Math.min(width, x0 + 64);
+                long word = 0;
+                for(int x=x0; x<end; ++x) {
+                    if(isSet.test(pixels[row + x]))
+                        word |= 1L << (x - x0);
+                }
+                res.words[index++] = word;
+            }
+        }
+        return res;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] >>> x & 1) != 0; // the shift only uses the low 6 bits of x
+    }
+
+    public void set(int x, int y, boolean value) {
+        int index = y * wordsPerRow + (x >>> 6);
+        if(value)
+            words[index] |= 1L << x;
+        else
+            words[index] &= ~(1L << x);
+    }
+
+    /**
+     * Sets the 64 pixels of a row starting at x = 64 * wordX, bit i being pixel 64 * wordX + i. Bits after the end
+     * of the row are ignored.
+     */
+    public void setWord(int wordX, int y, long word) {
+        words[y * wordsPerRow + wordX] = word & rowMask(wordX);
+    }
+
+    public long getWord(int wordX, int y) {
+        return words[y * wordsPerRow + wordX];
+    }
+
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /**
+     * @return the 8 neighbours of an interior pixel (not on the border) as bits EAST, NORTH_EAST, ... SOUTH_EAST
+     */
+    public int neighbours(int x, int y) {
+        int bit = x & 63;
+        if(bit == 0 || bit == 63) { // the neighbours are in two words
+            int code = 0;
+            if(get(x+1, y)) code |= EAST;
+            if(get(x+1, y-1)) code |= NORTH_EAST;
+            if(get(x, y-1)) code |= NORTH;
+            if(get(x-1, y-1)) code |= NORTH_WEST;
+            if(get(x-1, y)) code |= WEST;
+            if(get(x-1, y+1)) code |= SOUTH_WEST;
+            if(get(x, y+1)) code |= SOUTH;
+            if(get(x+1, y+1)) code |= SOUTH_EAST;
+            return code;
+        }
+
+        int index = y * wordsPerRow + (x >>> 6);
+        int shift = bit - 1;
+        int above = (int) (words[index - wordsPerRow] >>> shift) & 7;
+        int row = (int) (words[index] >>> shift) & 7;
+        int below = (int) (words[index + wordsPerRow] >>> shift) & 7;
+        return NEIGHBOURS[above | row << 3 | below << 6];
+    }
+
+    /**
+     * @return the number of set pixels
+     */
+    public long count() {
+        long res = 0;
+        for(long word : words)
+            res += Long.bitCount(word);
+        return res;
+    }
+
+    public BinaryImage copy() {
+        return new BinaryImage(this);
+    }
+
+    /**
+     * @return the image where pixel (x, y) is pixel (x + dx, y + dy) of this one, or not set if that is outside;
+     * dx and dy are -1, 0 or 1
+     */
+    public BinaryImage shifted(int dx, int dy) {
+        BinaryImage res = new BinaryImage(width, height);
+        for(int y=0; y<height; ++y) {
+            int sourceY = y + dy;
+            if(sourceY < 0 || sourceY >= height)
+                continue;
+            int src = sourceY * wordsPerRow;
+            int dst = y * wordsPerRow;
+            for(int w=0; w<wordsPerRow; ++w) {
+                long word = words[src + w];
+                if(dx == 1) // the pixel to the right moves down one bit, the next word brings in its first one
+                    word = word >>> 1 | (w + 1 < wordsPerRow ? words[src + w + 1] << 63 : 0);
+                else if(dx == -1)
+                    word = word << 1 | (w > 0 ? words[src + w - 1] >>> 63 : 0);
+                res.words[dst + w] = word & rowMask(w);
+            }
+        }
+        return res;
+    }
+
+    public BinaryImage and(BinaryImage other) {
+        BinaryImage res = new BinaryImage(width, height);
+        for(int i=0; i<words.length; ++i)
+            res.words[i] = words[i] & other.words[i];
+        return res;
+    }
+
+    public BinaryImage or(BinaryImage other) {
+        BinaryImage res = new BinaryImage(width, height);
+        for(int i=0; i<words.length; ++i)
+            res.words[i] = words[i] | other.words[i];
+        return res;
+    }
+
+    /**
+     * @return the pixels set here and not in the other image
+     */
+    public BinaryImage andNot(BinaryImage other) {
+        BinaryImage res = new BinaryImage(width, height);
+        for(int i=0; i<words.length; ++i)
+            res.words[i] = words[i] & ~other.words[i];
+        return res;
+    }
+
+    /**
+     * Clears the first and last row and column
+     */
+    public void clearBorder() {
+        if(height == 0)
+            return;
+        Arrays.fill(words, 0, wordsPerRow, 0);
+        Arrays.fill(words, (height - 1) * wordsPerRow, height * wordsPerRow, 0);
+        long lastColumn = 1L << ((width - 1) & 63);
+        for(int y=0; y<height; ++y) {
+            words[y * wordsPerRow] &= ~1L;
+            words[y * wordsPerRow + wordsPerRow - 1] &= ~lastColumn;
+        }
+    }
+
+    /**
+     * Writes the image as packed pixels, row-major
+     */
+    public void toPixels(int[] pixels, int set, int unset) {
+        toPixels(pixels, 0, height, set, unset);
+    }
+
+    /**
+     * Writes the rows [fromY, toY) as packed pixels, row-major
+     */
+    public void toPixels(int[] pixels, int fromY, int toY, int set, int unset) {
+        for(int y=fromY; y<toY; ++y) {
+            int row = y * width;
+            for(int x=0; x<width; ++x)
+                pixels[row + x] = (words[y * wordsPerRow + (x >>> 6)] >>> x & 1) != 0 ? set : unset;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof BinaryImage))
+            return false;
+        BinaryImage other = (BinaryImage) o;
+        return width == other.width && height == other.height && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words) * 31 + width;
+    }
+
+    private static int[] neighbourCodes() {
+        int[] res = new int[512];
+        for(int i=0; i<512; ++i) {
+            int above = i & 7, row = i >>> 3 & 7, below = i >>> 6;
+            int code = 0;
+            if((row & 4) != 0) code |= EAST;
+            if((above & 4) != 0) code |= NORTH_EAST;
+            if((above & 2) != 0) code |= NORTH;
+            if((above & 1) != 0) code |= NORTH_WEST;
+            if((row & 1) != 0) code |= WEST;
+            if((below & 1) != 0) code |= SOUTH_WEST;
+            if((below & 2) != 0) code |= SOUTH;
+            if((below & 4) != 0) code |= SOUTH_EAST;
+            res[i] = code;
+        }
+        return res;
+    }
+
+    /**
+     * @return the bits of the word that are inside the row
+     */
+    private long rowMask(int wordX) {
+        int bits = width - (wordX << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+}
@@ -0,0 +1,105 @@
+package util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Emits an "imagini.Operation" JDK Flight Recorder event for each measured operation, with its name, pixels and
+ * allocated bytes; the duration is the one of the event. The event is defined at runtime through jdk.jfr.EventFactory,
+ * so the code still compiles and runs on JVMs without Flight Recorder, where nothing is emitted.
+ * <p>
+ * Record with e.g. -XX:StartFlightRecording=filename=imagini.jfr; the events are disabled (and cost nothing beyond
+ * a check) unless a recording is running.
+ */
+final class JfrOperationEvents {
+    private static final String EVENT_NAME = "imagini.Operation";
+
+    private static final Object FACTORY;
+    private static final Object EVENT_TYPE;
+    private static final Method NEW_EVENT;
+    private static final Method IS_ENABLED;
+    private static final Method BEGIN;
+    private static final Method END;
+    private static final Method SET;
+    private static final Method COMMIT;
+
+    static {
+        Object factory = null, eventType = null;
+        Method newEvent = null, isEnabled = null, begin = null, end = null, set = null, commit = null;
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Image Operation"));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Imagini"}));
+            // the stack would only show the reflective commit
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+            List<Object> fields = Arrays.asList(
+                    field.newInstance(String.class, "operation"),
+                    field.newInstance(long.class, "pixels"),
+                    field.newInstance(long.class, "allocatedBytes"));
+
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            eventType = eventFactory.getMethod("getEventType").invoke(factory);
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            newEvent = eventFactory.getMethod("newEvent");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            factory = null; // no Flight Recorder on this JVM
+        }
+
+        FACTORY = factory;
+        EVENT_TYPE = eventType;
+        NEW_EVENT = newEvent;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        END = end;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private JfrOperationEvents() {
+    }
+
+    /**
+     * @return a started event, or null if Flight Recorder is not available or not recording these events
+     */
+    static Object begin() {
+        if(FACTORY == null)
+            return null;
+        try {
+            if(!(Boolean) IS_ENABLED.invoke(EVENT_TYPE))
+                return null;
+            Object event = NEW_EVENT.invoke(FACTORY);
+            BEGIN.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static void commit(Object event, String operation, long pixels, long allocatedBytes) {
+        try {
+            END.invoke(event);
+            SET.invoke(event, 0, operation);
+            SET.invoke(event, 1, pixels);
+            SET.invoke(event, 2, allocatedBytes);
+            COMMIT.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            // the measurement is still in the registry
+        }
+    }
+}
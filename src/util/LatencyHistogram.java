@@ -0,0 +1,65 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, with a resolution of one microsecond. Durations under 16 us have a bucket each;
+ * above that every power of two is split in 8 buckets, so percentiles are within 12.5% of the real value.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = LINEAR_BUCKETS + (64 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0, nanos / 1000)));
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the lower bound of the bucket of the quantile, in nanoseconds; 0 if nothing was recorded
+     */
+    public long getValueAt(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for(int i=0; i<BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i=0; i<BUCKETS; ++i) {
+            seen += snapshot[i];
+            if(seen >= rank)
+                return lowerBound(i) * 1000;
+        }
+        return lowerBound(BUCKETS - 1) * 1000;
+    }
+
+    public void reset() {
+        for(int i=0; i<BUCKETS; ++i)
+            counts.set(i, 0);
+    }
+
+    private static int bucketOf(long micros) {
+        if(micros < LINEAR_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros); // at least 4
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if(bucket < LINEAR_BUCKETS)
+            return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
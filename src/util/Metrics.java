@@ -0,0 +1,233 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of timings of the operations of the application (effects, loading, saving, converting for JavaFX).
+ * For each operation name it keeps the number of calls, a latency histogram, the pixels processed and the bytes
+ * allocated by the calling thread. Poll it with {@link #snapshot()}; each operation is also emitted as a JDK Flight
+ * Recorder event when a recording is running.
+ * <p>
+ * Recording costs a few clock and counter reads per operation, so it is always on; it can be turned off with
+ * -Dimagini.metrics=false. Allocations made by the worker threads of an effect are not counted, only the ones of the
+ * thread that called it (which allocates the result).
+ * <pre>
+ * try (Metrics.Sample sample = Metrics.global().start("effect.GREYSCALE", image)) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class Metrics {
+    private static final Metrics GLOBAL = new Metrics(!"false".equalsIgnoreCase(System.getProperty("imagini.metrics")));
+
+    private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = allocationBean();
+
+    private static final Sample NOOP = new Sample(null, null, 0);
+
+    /**
+     * Measures one call; closing it records the call
+     */
+    public static class Sample implements AutoCloseable {
+        private final Metrics metrics;
+        private final String operation;
+        private long pixels;
+        private boolean discarded;
+        private final long start;
+        private final long allocatedStart;
+        private final Object jfrEvent;
+
+        private Sample(Metrics metrics, String operation, long pixels) {
+            this.metrics = metrics;
+            this.operation = operation;
+            this.pixels = pixels;
+            this.jfrEvent = metrics == null ? null : JfrOperationEvents.begin();
+            this.allocatedStart = metrics == null ? 0 : allocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * For operations that only know the size of the image at the end, like loading it
+         */
+        public void setPixels(BufferedImage image) {
+            pixels = image == null ? 0 : (long) image.getWidth() * image.getHeight();
+        }
+
+        /**
+         * The call isn't recorded, e.g. because it was cancelled and its time would skew the others
+         */
+        public void discard() {
+            discarded = true;
+        }
+
+        @Override
+        public void close() {
+            if(metrics == null || discarded)
+                return;
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedStart < 0 ? -1 : allocatedBytes() - allocatedStart;
+            metrics.record(operation, nanos, pixels, allocated);
+            if(jfrEvent != null)
+                JfrOperationEvents.commit(jfrEvent, operation, pixels, allocated);
+        }
+    }
+
+    /**
+     * What was recorded for an operation until the snapshot was taken
+     */
+    public static class OperationSnapshot {
+        public final String operation;
+        public final long count;
+        public final double totalMillis;
+        public final double maxMillis;
+        public final double p50Millis;
+        public final double p90Millis;
+        public final double p99Millis;
+        public final long pixels;
+        public final long allocatedBytes; // -1 if the JVM can't measure it
+
+        OperationSnapshot(String operation, Stats stats) {
+            this.operation = operation;
+            this.count = stats.count.sum();
+            this.totalMillis = stats.totalNanos.sum() / 1e6;
+            this.maxMillis = stats.maxNanos.get() / 1e6;
+            this.p50Millis = stats.histogram.getValueAt(0.5) / 1e6;
+            this.p90Millis = stats.histogram.getValueAt(0.9) / 1e6;
+            this.p99Millis = stats.histogram.getValueAt(0.99) / 1e6;
+            this.pixels = stats.pixels.sum();
+            this.allocatedBytes = stats.allocationUnknown ? -1 : stats.allocatedBytes.sum();
+        }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+
+        /**
+         * @return pixels processed per second of the operation, 0 for operations without pixels
+         */
+        public double getMegapixelsPerSecond() {
+            return totalMillis == 0 ? 0 : pixels / 1e3 / totalMillis;
+        }
+
+        public long getAllocatedBytesPerOp() {
+            return count == 0 || allocatedBytes < 0 ? allocatedBytes : allocatedBytes / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-32s %7d calls  mean %9.2f ms  p50 %9.2f  p90 %9.2f  p99 %9.2f  max %9.2f  %8.2f MP/s  %10s/op",
+                    operation, count, getMeanMillis(), p50Millis, p90Millis, p99Millis, maxMillis, getMegapixelsPerSecond(),
+                    allocatedBytes < 0 ? "n/a" : (getAllocatedBytesPerOp() >> 10) + " KB");
+        }
+    }
+
+    private static class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final LongAdder pixels = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        final LatencyHistogram histogram = new LatencyHistogram();
+        volatile boolean allocationUnknown;
+    }
+
+    private final boolean enabled;
+    private final Map<String, Stats> operations = new ConcurrentHashMap<>();
+
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the registry the services record to
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Sample start(String operation) {
+        return start(operation, 0);
+    }
+
+    /**
+     * @param image the pixels it has are counted as processed by the operation; may be null
+     */
+    public Sample start(String operation, BufferedImage image) {
+        return start(operation, image == null ? 0 : (long) image.getWidth() * image.getHeight());
+    }
+
+    public Sample start(String operation, long pixels) {
+        return enabled ? new Sample(this, operation, pixels) : NOOP;
+    }
+
+    /**
+     * @param allocatedBytes -1 if unknown
+     */
+    public void record(String operation, long nanos, long pixels, long allocatedBytes) {
+        if(!enabled)
+            return;
+        Stats stats = operations.computeIfAbsent(operation, name -> new Stats());
+        stats.count.increment();
+        stats.totalNanos.add(nanos);
+        stats.maxNanos.accumulate(nanos);
+        stats.pixels.add(pixels);
+        stats.histogram.record(nanos);
+        if(allocatedBytes < 0)
+            stats.allocationUnknown = true;
+        else
+            stats.allocatedBytes.add(allocatedBytes);
+    }
+
+    /**
+     * @return the operations recorded so far, by name
+     */
+    public SortedMap<String, OperationSnapshot> snapshot() {
+        SortedMap<String, OperationSnapshot> res = new TreeMap<>();
+        for(Map.Entry<String, Stats> entry : operations.entrySet())
+            res.put(entry.getKey(), new OperationSnapshot(entry.getKey(), entry.getValue()));
+        return res;
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+    /**
+     * @return one line per operation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(OperationSnapshot operation : snapshot().values())
+            sb.append(operation).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if(ALLOCATION_BEAN == null || !ALLOCATION_BEAN.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+            return (com.sun.management.ThreadMXBean) bean;
+        return null;
+    }
+}
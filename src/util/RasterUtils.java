@@ -0,0 +1,106 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Bulk access to the pixels of a BufferedImage as packed ARGB ints, row-major (index = y * width + x).
+ */
+public final class RasterUtils {
+    /**
+     * Number of rows converted at once when an image is not stored as ints, so we never need a second full-size array
+     */
+    private static final int STRIP_HEIGHT = 64;
+
+    private RasterUtils() {
+    }
+
+    /**
+     * @return true if the pixels of the image live in a single int[] with one packed pixel per element
+     */
+    public static boolean isIntBacked(BufferedImage img) {
+        int type = img.getType();
+        return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && img.getRaster().getParent() == null;
+    }
+
+    /**
+     * Converts the image to TYPE_INT_ARGB (or TYPE_INT_RGB if it has no alpha), keeping the values returned by getRGB.
+     * Images that are already int backed are returned as they are.
+     */
+    public static BufferedImage toIntRaster(BufferedImage img) {
+        if(isIntBacked(img))
+            return img;
+
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage res = new BufferedImage(width, height, type);
+
+        int[] strip = new int[width * Math.min(STRIP_HEIGHT, height)];
+        for(int y=0; y<height; y+=STRIP_HEIGHT) {
+            int rows = Math.min(STRIP_HEIGHT, height - y);
+            img.getRGB(0, y, width, rows, strip, 0, width);
+            res.setRGB(0, y, width, rows, strip, 0, width);
+        }
+
+        return res;
+    }
+
+    /**
+     * Makes an independent copy of the image with the same type, copying whole arrays instead of pixel by pixel
+     */
+    public static BufferedImage copy(BufferedImage img) {
+        if(isIntBacked(img)) {
+            BufferedImage res = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
+            int[] src = getPixels(img);
+            System.arraycopy(src, 0, getPixels(res), 0, src.length);
+            return res;
+        }
+
+        ColorModel cm = img.getColorModel();
+        return new BufferedImage(cm, img.copyData(null), cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * @return a TYPE_INT_ARGB image backed by the array itself, without copying it
+     */
+    public static BufferedImage wrapArgb(int[] pixels, int width, int height) {
+        DirectColorModel cm = (DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width, cm.getMasks(), null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Returns the pixels of the image. For int backed images this is the backing array itself, so writes go
+     * straight into the image; otherwise it is a copy that has to be written back with {@link #setPixels}.
+     */
+    public static int[] getPixels(BufferedImage img) {
+        if(isIntBacked(img))
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    /**
+     * Writes back pixels obtained with {@link #getPixels}. Does nothing if they are the backing array of the image.
+     */
+    public static void setPixels(BufferedImage img, int[] pixels) {
+        if(isIntBacked(img) && ((DataBufferInt) img.getRaster().getDataBuffer()).getData() == pixels)
+            return;
+
+        img.setRGB(0, 0, img.getWidth(), img.getHeight(), pixels, 0, img.getWidth());
+    }
+
+    /**
+     * Pixels of images without alpha are stored without the alpha byte. OR-ing this mask on a stored value gives
+     * what getRGB would return, and clearing it from an opaque color gives the value to store.
+     */
+    public static int opaqueMask(BufferedImage img) {
+        return img.getColorModel().hasAlpha() ? 0 : 0xFF000000;
+    }
+}
@@ -0,0 +1,147 @@
+package service;
+
+import domain.Argb;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Compares the contour, skeleton and thinning effects, which work on images packed 64 pixels per long, with naive
+ * implementations that check every pixel on its own. They have to give exactly the same pixels.
+ */
+public class BinaryEffectsTest {
+    private static final int OUTSIDE = -1;
+
+    public static void main(String[] args) {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB};
+        for(long seed=0; seed<6; ++seed) {
+            // widths around multiples of 64, where the pixels change word
+            int width = 60 + (int) seed * 23;
+            int height = 40 + (int) seed * 11;
+            BufferedImage image = TestImages.photo(width, height, types[(int) seed % 2], seed);
+
+            for(int threads : new int[]{1, 3}) {
+                RasterEffects effects = new RasterEffects(new TileScheduler(threads, 0));
+                for(int cutoff : new int[]{3, 10, 30}) {
+                    String what = "seed " + seed + ", cutoff " + cutoff + ", " + threads + " threads";
+                    boolean[] contour = contour(image, cutoff);
+                    TestImages.assertSame("contour " + what, contour, TestImages.black(effects.contour(image, cutoff)), width);
+
+                    for(SkeletonEngine.Metric metric : SkeletonEngine.Metric.values()) {
+                        boolean[] expected = ridges(distanceField(contour, width, height, metric), width, height);
+                        BufferedImage skeleton = effects.skeleton(image, cutoff, metric);
+                        TestImages.assertSame("skeleton " + metric + " " + what, expected, TestImages.black(skeleton), width);
+                    }
+                }
+
+                BufferedImage lineArt = TestImages.lineArt(width, height, seed);
+                for(ThinningEngine.Algorithm algorithm : ThinningEngine.Algorithm.values()) {
+                    int[] expected = thinning(lineArt, algorithm);
+                    int[] actual = effects.thinning(lineArt, algorithm).getRGB(0, 0, width, height, null, 0, width);
+                    TestImages.assertSame("thinning " + algorithm + " seed " + seed + ", " + threads + " threads", expected, actual, width);
+                }
+            }
+        }
+        System.out.println("BinaryEffectsTest OK");
+    }
+
+    /**
+     * The pixels with a 4-neighbour brighter by more than cutoff on average per channel, except the border
+     */
+    private static boolean[] contour(BufferedImage image, int cutoff) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean[] res = new boolean[width * height];
+        for(int y=1; y<height-1; ++y) {
+            for(int x=1; x<width-1; ++x) {
+                int val = total(image, x, y);
+                res[y * width + x] = total(image, x + 1, y) - val > cutoff * 3 || total(image, x - 1, y) - val > cutoff * 3
+                        || total(image, x, y + 1) - val > cutoff * 3 || total(image, x, y - 1) - val > cutoff * 3;
+            }
+        }
+        return res;
+    }
+
+    private static int total(BufferedImage image, int x, int y) {
+        return Argb.total(image.getRGB(x, y));
+    }
+
+    /**
+     * Marches from every pixel in each of the 8 directions. A pixel that reaches the first row or column or leaves
+     * the image in some direction before meeting the contour is outside. For inside pixels, RAY_8 is the fewest steps
+     * to the contour and EUCLIDEAN the squared distance to the nearest contour pixel, searched over all of them.
+     */
+    private static int[] distanceField(boolean[] contour, int width, int height, SkeletonEngine.Metric metric) {
+        int[] res = new int[width * height];
+        for(int y=0; y<height; ++y) {
+            for(int x=0; x<width; ++x) {
+                int steps = Integer.MAX_VALUE;
+                for(int dx=-1; dx<=1; ++dx) {
+                    for(int dy=-1; dy<=1; ++dy) {
+                        if(dx != 0 || dy != 0)
+                            steps = Math.min(steps, march(contour, width, height, x, y, dx, dy));
+                    }
+                }
+                res[y * width + x] = steps > 0 && metric == SkeletonEngine.Metric.EUCLIDEAN ? nearest(contour, width, x, y) : steps;
+            }
+        }
+        return res;
+    }
+
+    private static int march(boolean[] contour, int width, int height, int x, int y, int dx, int dy) {
+        for(int steps=0; ; ++steps, x+=dx, y+=dy) {
+            if(x <= 0 || y <= 0 || x >= width || y >= height)
+                return OUTSIDE;
+            if(contour[y * width + x])
+                return steps;
+        }
+    }
+
+    private static int nearest(boolean[] contour, int width, int x, int y) {
+        int res = Integer.MAX_VALUE;
+        for(int i=0; i<contour.length; ++i) {
+            if(contour[i]) {
+                int dx = i % width - x;
+                int dy = i / width - y;
+                res = Math.min(res, dx * dx + dy * dy);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Inside pixels at least as far from the contour as all 8 neighbours, except the border
+     */
+    private static boolean[] ridges(int[] field, int width, int height) {
+        boolean[] res = new boolean[width * height];
+        for(int y=1; y<height-1; ++y) {
+            for(int x=1; x<width-1; ++x) {
+                int d = field[y * width + x];
+                boolean ridge = d > 0;
+                for(int ny=y-1; ny<=y+1; ++ny) {
+                    for(int nx=x-1; nx<=x+1; ++nx)
+                        ridge &= d >= field[ny * width + nx];
+                }
+                res[y * width + x] = ridge;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The removed black pixels and the border become white, the other pixels keep their color
+     */
+    private static int[] thinning(BufferedImage image, ThinningEngine.Algorithm algorithm) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean[] black = TestImages.black(image);
+        boolean[] thinned = ThinningEngineTest.thin(black, width, height, algorithm);
+
+        int[] res = image.getRGB(0, 0, width, height, null, 0, width);
+        for(int i=0; i<res.length; ++i) {
+            boolean border = i % width == 0 || i / width == 0 || i % width == width - 1 || i / width == height - 1;
+            if(border || black[i] && !thinned[i])
+                res[i] = 0xFFFFFFFF;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,83 @@
+package service;
+
+import domain.Argb;
+import util.RasterUtils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares the thumbnails made from the pyramid with resampling the whole image directly. The levels are made with a
+ * box filter, so the pixels may differ a little, but the colors of transparent pixels must not show up in either.
+ */
+public class ImagePyramidTest {
+    private static final int COLOR_TOLERANCE = 2;
+    private static final int ALPHA_TOLERANCE = 8;
+
+    public static void main(String[] args) {
+        for(long seed=0; seed<4; ++seed) {
+            int width = 900 + (int) seed * 131;
+            int height = 700 + (int) seed * 77;
+            BufferedImage image = redOnTransparentGreen(width, height, seed);
+            int[] pixels = RasterUtils.getPixels(image);
+
+            for(Resampler.Filter filter : Resampler.Filter.values()) {
+                // picks single pixels, which can't match the averaged levels
+                if(filter == Resampler.Filter.NEAREST)
+                    continue;
+                for(int size : new int[]{40, 97, 200}) {
+                    int newHeight = size * height / width;
+                    TileScheduler scheduler = new TileScheduler(3, 0);
+                    int[] expected = new Resampler(filter, scheduler).resize(pixels, width, height, 0, size, newHeight);
+                    int[] actual = RasterUtils.getPixels(ImagePyramid.of(image).downscale(size, newHeight, filter, scheduler));
+                    assertClose(filter + " " + size + "x" + newHeight + " seed " + seed, expected, actual, size);
+                }
+            }
+        }
+        System.out.println("ImagePyramidTest OK");
+    }
+
+    /**
+     * Red shapes of different opacities on a fully transparent green background
+     */
+    private static BufferedImage redOnTransparentGreen(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(new Color(0, 255, 0, 0));
+        g.fillRect(0, 0, width, height);
+
+        Random random = new Random(seed);
+        for(int k=0; k<40; ++k) {
+            g.setColor(new Color(255, 0, 0, 32 + random.nextInt(224)));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            if(random.nextBoolean())
+                g.fillOval(x, y, 1 + random.nextInt(width / 4), 1 + random.nextInt(height / 4));
+            else
+                g.fillRect(x, y, 1 + random.nextInt(width / 8), 1 + random.nextInt(height / 8));
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * @throws AssertionError if the color of a pixel visible in both differs by more than COLOR_TOLERANCE, or the
+     * alpha differs by more than ALPHA_TOLERANCE on average. Single pixels on the edges of the shapes can differ more,
+     * the levels blur them a little.
+     */
+    private static void assertClose(String what, int[] expected, int[] actual, int width) {
+        long alphaDifference = 0;
+        for(int i=0; i<expected.length; ++i) {
+            alphaDifference += Math.abs((expected[i] >>> 24) - (actual[i] >>> 24));
+            boolean visible = expected[i] >>> 24 > 0 && actual[i] >>> 24 > 0;
+            if(visible && (Math.abs(Argb.red(expected[i]) - Argb.red(actual[i])) > COLOR_TOLERANCE
+                    || Math.abs(Argb.green(expected[i]) - Argb.green(actual[i])) > COLOR_TOLERANCE
+                    || Math.abs(Argb.blue(expected[i]) - Argb.blue(actual[i])) > COLOR_TOLERANCE))
+                throw new AssertionError(String.format("%s: pixel (%d, %d) is %08x, expected %08x", what, i % width, i / width, actual[i], expected[i]));
+        }
+        if(alphaDifference > (long) ALPHA_TOLERANCE * expected.length)
+            throw new AssertionError(String.format("%s: the alpha differs by %.2f on average", what, (double) alphaDifference / expected.length));
+    }
+}
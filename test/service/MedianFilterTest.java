@@ -0,0 +1,68 @@
+package service;
+
+import domain.Argb;
+import util.RasterUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compares the histogram median filter with the sorted list it replaced. They have to give exactly the same pixels,
+ * also where several neighbours have the median brightness.
+ */
+public class MedianFilterTest {
+    public static void main(String[] args) {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB};
+        for(long seed=0; seed<4; ++seed) {
+            int width = 50 + (int) seed * 31;
+            int height = 30 + (int) seed * 19;
+            BufferedImage image = TestImages.photo(width, height, types[(int) seed % 2], seed);
+            int[] source = RasterUtils.getPixels(image);
+            int opaque = RasterUtils.opaqueMask(image);
+
+            for(int windowSize : new int[]{1, 2, 5, 12}) {
+                int[] expected = median(source, width, height, windowSize, opaque);
+                for(int threads : new int[]{1, 3}) {
+                    int[] actual = new int[source.length];
+                    new MedianFilter(windowSize, RasterEffects.MEDIAN_REMOVE_MARGIN).apply(source, actual, width, height, opaque, new TileScheduler(threads, 0));
+                    TestImages.assertSame("window " + windowSize + " seed " + seed + ", " + threads + " threads", expected, actual, width);
+                }
+            }
+        }
+        System.out.println("MedianFilterTest OK");
+    }
+
+    /**
+     * The previous implementation: collect the neighbours in a list column by column, sort them stably by brightness,
+     * drop the ones within the margin of the darkest and brightest and take the middle one
+     */
+    private static int[] median(int[] source, int width, int height, int windowSize, int opaque) {
+        int[] res = new int[source.length];
+        for(int y=0; y<height; ++y) {
+            for(int x=0; x<width; ++x) {
+                List<Integer> values = new ArrayList<>();
+                for(int i=Math.max(0, x - windowSize); i<=Math.min(width - 1, x + windowSize); ++i) {
+                    for(int j=Math.max(0, y - windowSize); j<=Math.min(height - 1, y + windowSize); ++j) {
+                        if(x != i || y != j)
+                            values.add(source[j * width + i]);
+                    }
+                }
+
+                values.sort(Comparator.comparingInt(Argb::total));
+                int minTotal = Argb.total(values.get(0));
+                int maxTotal = Argb.total(values.get(values.size() - 1));
+                values.removeIf(v -> Argb.total(v) - RasterEffects.MEDIAN_REMOVE_MARGIN < minTotal
+                        || Argb.total(v) + RasterEffects.MEDIAN_REMOVE_MARGIN > maxTotal);
+                if(values.size() < 2) {
+                    res[y * width + x] = source[y * width + x];
+                    continue;
+                }
+
+                res[y * width + x] = (values.get(values.size() / 2) | 0xFF000000) & ~opaque;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,88 @@
+package service;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Inputs and checks shared by the reference comparisons
+ */
+final class TestImages {
+    private TestImages() {
+    }
+
+    /**
+     * Black lines and ovals of random widths on white, with a filled rectangle on the bigger images
+     */
+    static BufferedImage lineArt(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLACK);
+
+        Random random = new Random(seed);
+        for(int k=0; k<Math.max(20, width * height / 4000); ++k) {
+            g.setStroke(new BasicStroke(1 + random.nextInt(12)));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            if(random.nextBoolean())
+                g.drawLine(x, y, random.nextInt(width), random.nextInt(height));
+            else
+                g.drawOval(x, y, random.nextInt(width / 4 + 1), random.nextInt(height / 4 + 1));
+        }
+        if(width > 100)
+            g.fillRect(width / 3, height / 3, width / 6, height / 6);
+        g.dispose();
+
+        return image;
+    }
+
+    /**
+     * Smooth gradients with noise, so that there are both flat areas and edges
+     */
+    static BufferedImage photo(int width, int height, int type, long seed) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(seed);
+        for(int y=0; y<height; ++y) {
+            for(int x=0; x<width; ++x) {
+                int r = (x * 255 / width + random.nextInt(24)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(24)) & 0xFF;
+                int b = ((x + y) % 64 < 32 ? 40 : 200) + random.nextInt(16);
+                image.setRGB(x, y, (random.nextInt(256) << 24) | (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return for every pixel whether it is black, ignoring the alpha
+     */
+    static boolean[] black(BufferedImage image) {
+        int width = image.getWidth();
+        boolean[] res = new boolean[width * image.getHeight()];
+        for(int i=0; i<res.length; ++i)
+            res[i] = (image.getRGB(i % width, i / width) & 0xFFFFFF) == 0;
+        return res;
+    }
+
+    /**
+     * @throws AssertionError naming the first pixel that differs
+     */
+    static void assertSame(String what, boolean[] expected, boolean[] actual, int width) {
+        for(int i=0; i<expected.length; ++i) {
+            if(expected[i] != actual[i])
+                throw new AssertionError(what + ": pixel (" + i % width + ", " + i / width + ") is " + actual[i] + ", expected " + expected[i]);
+        }
+    }
+
+    /**
+     * @throws AssertionError naming the first pixel that differs
+     */
+    static void assertSame(String what, int[] expected, int[] actual, int width) {
+        for(int i=0; i<expected.length; ++i) {
+            if(expected[i] != actual[i])
+                throw new AssertionError(String.format("%s: pixel (%d, %d) is %08x, expected %08x", what, i % width, i / width, actual[i], expected[i]));
+        }
+    }
+}
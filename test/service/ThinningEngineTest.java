@@ -0,0 +1,112 @@
+package service;
+
+import util.BinaryImage;
+import util.RasterUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares ThinningEngine with a naive implementation of the same algorithms that checks every pixel of the image
+ * in each subiteration, until nothing changes.
+ */
+public class ThinningEngineTest {
+    public static void main(String[] args) {
+        for(long seed=0; seed<12; ++seed) {
+            int width = 37 + (int) seed * 23;
+            int height = 29 + (int) seed * 17;
+            BufferedImage image = TestImages.lineArt(width, height, seed);
+            BinaryImage black = BinaryImage.of(RasterUtils.getPixels(image), width, height, argb -> (argb | 0xFF000000) == 0xFF000000);
+
+            for(ThinningEngine.Algorithm algorithm : ThinningEngine.Algorithm.values()) {
+                boolean[] expected = thin(TestImages.black(image), width, height, algorithm);
+                for(int threads : new int[]{1, 3}) {
+                    ThinningEngine engine = new ThinningEngine(new TileScheduler(threads, 0));
+                    BinaryImage thinned = engine.thin(black, algorithm);
+                    String what = algorithm + " seed " + seed + ", " + threads + " threads";
+                    TestImages.assertSame(what, expected, toArray(thinned), width);
+                    if(!engine.thin(thinned, algorithm).equals(thinned))
+                        throw new AssertionError(what + ": thinning again changed the image");
+                }
+            }
+        }
+        System.out.println("ThinningEngineTest OK");
+    }
+
+    private static boolean[] toArray(BinaryImage image) {
+        int width = image.getWidth();
+        boolean[] res = new boolean[width * image.getHeight()];
+        for(int i=0; i<res.length; ++i)
+            res[i] = image.get(i % width, i / width);
+        return res;
+    }
+
+    /**
+     * The reference: both subiterations over the whole image, deciding every pixel from the image as it was before
+     */
+    static boolean[] thin(boolean[] image, int width, int height, ThinningEngine.Algorithm algorithm) {
+        boolean[] res = image.clone();
+        for(int x=0; x<width; ++x) {
+            res[x] = false;
+            res[(height - 1) * width + x] = false;
+        }
+        for(int y=0; y<height; ++y) {
+            res[y * width] = false;
+            res[y * width + width - 1] = false;
+        }
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int pass=0; pass<2; ++pass) {
+                List<Integer> removed = new ArrayList<>();
+                for(int y=1; y<height-1; ++y) {
+                    for(int x=1; x<width-1; ++x) {
+                        int i = y * width + x;
+                        if(!res[i])
+                            continue;
+                        // clockwise from the north
+                        int[] p = {bit(res[i - width]), bit(res[i - width + 1]), bit(res[i + 1]), bit(res[i + width + 1]),
+                                bit(res[i + width]), bit(res[i + width - 1]), bit(res[i - 1]), bit(res[i - width - 1])};
+                        boolean remove = algorithm == ThinningEngine.Algorithm.GUO_HALL ? guoHall(p, pass) : zhangSuen(p, pass);
+                        if(remove)
+                            removed.add(i);
+                    }
+                }
+                for(int i : removed)
+                    res[i] = false;
+                changed |= !removed.isEmpty();
+            }
+        }
+        return res;
+    }
+
+    private static boolean zhangSuen(int[] p, int pass) {
+        int p2 = p[0], p4 = p[2], p6 = p[4], p8 = p[6];
+        int neighbours = 0;
+        int transitions = 0;
+        for(int k=0; k<8; ++k) {
+            neighbours += p[k];
+            if(p[k] == 0 && p[(k + 1) % 8] == 1)
+                ++transitions;
+        }
+        int m1 = pass == 0 ? p2 * p4 * p6 : p2 * p4 * p8;
+        int m2 = pass == 0 ? p4 * p6 * p8 : p2 * p6 * p8;
+        return neighbours >= 2 && neighbours <= 6 && transitions == 1 && m1 == 0 && m2 == 0;
+    }
+
+    private static boolean guoHall(int[] p, int pass) {
+        int p2 = p[0], p3 = p[1], p4 = p[2], p5 = p[3], p6 = p[4], p7 = p[5], p8 = p[6], p9 = p[7];
+        int c = ((1 - p2) & (p3 | p4)) + ((1 - p4) & (p5 | p6)) + ((1 - p6) & (p7 | p8)) + ((1 - p8) & (p9 | p2));
+        int n1 = (p9 | p2) + (p3 | p4) + (p5 | p6) + (p7 | p8);
+        int n2 = (p2 | p3) + (p4 | p5) + (p6 | p7) + (p8 | p9);
+        int n = Math.min(n1, n2);
+        int m = pass == 0 ? (p6 | p7 | (1 - p9)) & p8 : (p2 | p3 | (1 - p5)) & p4;
+        return c == 1 && n >= 2 && n <= 3 && m == 0;
+    }
+
+    private static int bit(boolean value) {
+        return value ? 1 : 0;
+    }
+}